@@ -0,0 +1,233 @@
+package homecontrolserver;
+
+import java.nio.charset.Charset;
+import java.util.List;
+
+/*************************************************************************************
+ * Compact binary framing a client can use in place of the text protocol. A client asks for
+ * it by logging in with a version containing "+bin", for example "2.0+bin". The server
+ * answers the login with the text line VALID+BIN and from then on both directions use
+ * frames:
+ *
+ *   length (4 bytes) | opcode (1 byte) | payload (length - 1 bytes)
+ *
+ * Numbers are big endian. Frames from a client are at most MAX_FRAME_LENGTH long. Client
+ * to server:
+ *
+ *   GET_STATUS    0x01  empty, or the 8 byte version the client has (NOT_MODIFIED if current)
+ *   GET_CHANGES   0x02  empty, or a 4 byte long poll wait in milliseconds
+ *   SET_DOORS     0x03  1 byte door record, the doors' requested state
+ *   SUBSCRIBE     0x04  empty
+ *   UNSUBSCRIBE   0x05  empty
+ *   LOGOUT        0x06  empty
+ *   TEXT_COMMAND  0x7F  UTF-8 text protocol command, for commands without an opcode
+ *
+ * Server to client:
+ *
+ *   TEXT          0x80  UTF-8 text protocol response, such as UPDATED_GARAGE_DOOR or GOODBYE
+ *   STATUS        0x81  1 byte door record, then the 8 byte status version
+ *   NOT_MODIFIED  0x82  empty
+ *   CHANGES       0x83  4 byte count, then each change as a 4 byte length and UTF-8 bytes
+ *
+ * A door record has bit 0 set if the left door is open and bit 1 set if the right door is.
+ * Text clients are unaffected, they never send "+bin".
+ ************************************************************************************/
+public class BinaryProtocol
+{
+	static final String LOGIN_VERSION_TAG = "+bin";
+	static final String VALID_BINARY = "VALID+BIN";
+
+	static final int HEADER_LENGTH = 5;	//length and opcode
+	static final int MAX_FRAME_LENGTH = 1024 * 64;	//longest frame accepted from a client
+
+	//client to server
+	static final int GET_STATUS = 0x01;
+	static final int GET_CHANGES = 0x02;
+	static final int SET_DOORS = 0x03;
+	static final int SUBSCRIBE = 0x04;
+	static final int UNSUBSCRIBE = 0x05;
+	static final int LOGOUT = 0x06;
+	static final int TEXT_COMMAND = 0x7F;
+
+	//server to client
+	static final int TEXT = 0x80;
+	static final int STATUS = 0x81;
+	static final int NOT_MODIFIED = 0x82;
+	static final int CHANGES = 0x83;
+
+	private static final int LEFT_DOOR_OPEN = 0x01;
+	private static final int RIGHT_DOOR_OPEN = 0x02;
+
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+	private static final byte[] NOT_MODIFIED_FRAME = { 0, 0, 0, 1, (byte) NOT_MODIFIED };
+	private static final LatencyHistogram[] commandTimers = createCommandTimers();
+
+	private BinaryProtocol() {}
+
+	/**
+	 * Returns true if the version a client logged in with asks for binary framing.
+	 */
+	static boolean isBinaryVersion(String loginVersion)
+	{
+		return loginVersion != null && loginVersion.contains(LOGIN_VERSION_TAG);
+	}
+
+	/**
+	 * Handles one frame received from a client. The payload is read before this returns, so
+	 * the buffer can be reused.
+	 */
+	static void handleFrame(Client c, int opcode, byte[] buf, int off, int len)
+	{
+		switch(opcode)
+		{
+			case GET_STATUS:
+				c.garageDoorStatusCommand(len >= 8 ? Math.max(0, getLong(buf, off)) : -1);
+				break;
+
+			case GET_CHANGES:
+				c.changesCommand(len >= 4 ? getInt(buf, off) & 0xFFFFFFFFL : 0);
+				break;
+
+			case SET_DOORS:
+				if(len < 1)
+					c.sendLine("UPDATE_GARAGE_DOOR_FAILED");
+				else
+					c.garageDoorUpdateCommand(describe(opcode), (buf[off] & LEFT_DOOR_OPEN) != 0,
+												(buf[off] & RIGHT_DOOR_OPEN) != 0);
+				break;
+
+			case SUBSCRIBE:
+				c.subscribeCommand();
+				break;
+
+			case UNSUBSCRIBE:
+				c.unsubscribeCommand();
+				break;
+
+			case LOGOUT:
+				c.logoutCommand();
+				break;
+
+			case TEXT_COMMAND:
+				c.processCommand(new String(buf, off, len, CHARSET));
+				break;
+
+			default:
+				c.sendLine("UNRECOGNIZED_COMMAND" + describe(opcode));
+		}
+	}
+
+	/**
+	 * Returns the histogram an opcode's response time is recorded in, the same one as the
+	 * equivalent text command's, or null if the opcode isn't timed by itself.
+	 */
+	static LatencyHistogram getCommandTimer(int opcode)
+	{
+		return opcode >= 0 && opcode < commandTimers.length ? commandTimers[opcode] : null;
+	}
+
+	private static LatencyHistogram[] createCommandTimers()
+	{
+		ServerMetrics metrics = ServerMetrics.getInstance();
+		LatencyHistogram[] timers = new LatencyHistogram[TEXT_COMMAND];
+		timers[GET_STATUS] = metrics.getCommandTimer("GET<garage_door_status>");
+		timers[GET_CHANGES] = metrics.getCommandTimer("GET<changes>");
+		timers[SET_DOORS] = metrics.getCommandTimer("POST<garage_door_status>");
+		timers[SUBSCRIBE] = metrics.getCommandTimer("SUBSCRIBE");
+		timers[UNSUBSCRIBE] = metrics.getCommandTimer("UNSUBSCRIBE");
+		timers[LOGOUT] = metrics.getCommandTimer("LOGOUT");
+		return timers;
+	}
+
+	/**
+	 * Name of a request opcode, shown as the client's last command.
+	 */
+	static String describe(int opcode)
+	{
+		switch(opcode)
+		{
+			case GET_STATUS: return "BIN<GET_STATUS>";
+			case GET_CHANGES: return "BIN<GET_CHANGES>";
+			case SET_DOORS: return "BIN<SET_DOORS>";
+			case SUBSCRIBE: return "BIN<SUBSCRIBE>";
+			case UNSUBSCRIBE: return "BIN<UNSUBSCRIBE>";
+			case LOGOUT: return "BIN<LOGOUT>";
+			case TEXT_COMMAND: return "BIN<TEXT_COMMAND>";
+			default: return String.format("BIN<0x%02X>", opcode);
+		}
+	}
+
+	static byte[] encodeText(String line)
+	{
+		byte[] text = line.getBytes(CHARSET);
+		byte[] frame = new byte[HEADER_LENGTH + text.length];
+		putInt(frame, 0, 1 + text.length);
+		frame[4] = (byte) TEXT;
+		System.arraycopy(text, 0, frame, HEADER_LENGTH, text.length);
+		return frame;
+	}
+
+	static byte[] encodeStatus(boolean bLeftDoorOpen, boolean bRightDoorOpen, long version)
+	{
+		byte[] frame = new byte[HEADER_LENGTH + 9];
+		putInt(frame, 0, 10);
+		frame[4] = (byte) STATUS;
+		frame[5] = (byte) ((bLeftDoorOpen ? LEFT_DOOR_OPEN : 0) | (bRightDoorOpen ? RIGHT_DOOR_OPEN : 0));
+		putLong(frame, 6, version);
+		return frame;
+	}
+
+	static byte[] encodeNotModified() { return NOT_MODIFIED_FRAME; }
+
+	static byte[] encodeChanges(List<String> changes)
+	{
+		byte[][] encoded = new byte[changes.size()][];
+		int length = 1 + 4;	//opcode and count
+		for(int i = 0; i < encoded.length; i++)
+		{
+			encoded[i] = changes.get(i).getBytes(CHARSET);
+			length += 4 + encoded[i].length;
+		}
+
+		byte[] frame = new byte[4 + length];
+		putInt(frame, 0, length);
+		frame[4] = (byte) CHANGES;
+		putInt(frame, 5, encoded.length);
+		int pos = 9;
+		for(byte[] b : encoded)
+		{
+			putInt(frame, pos, b.length);
+			System.arraycopy(b, 0, frame, pos + 4, b.length);
+			pos += 4 + b.length;
+		}
+
+		return frame;
+	}
+
+	static int getInt(byte[] b, int off)
+	{
+		return (b[off] & 0xFF) << 24 | (b[off+1] & 0xFF) << 16 | (b[off+2] & 0xFF) << 8 | (b[off+3] & 0xFF);
+	}
+
+	static long getLong(byte[] b, int off)
+	{
+		return (long) getInt(b, off) << 32 | (getInt(b, off + 4) & 0xFFFFFFFFL);
+	}
+
+	private static void putInt(byte[] b, int off, int value)
+	{
+		b[off] = (byte) (value >>> 24);
+		b[off+1] = (byte) (value >>> 16);
+		b[off+2] = (byte) (value >>> 8);
+		b[off+3] = (byte) value;
+	}
+
+	private static void putLong(byte[] b, int off, long value)
+	{
+		for(int i = 7; i >= 0; i--)
+		{
+			b[off+i] = (byte) value;
+			value >>>= 8;
+		}
+	}
+}
@@ -0,0 +1,193 @@
+package homecontrolserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*************************************************************************************
+ * Bounded, append only log of the changes clients poll for with GET<changes>. Every change
+ * gets the next sequence number and is stored once in a ring buffer, however many clients
+ * are connected; each client only keeps the sequence number of the last change it has
+ * read. When the log is full the oldest change is overwritten, so a client that hasn't
+ * polled for a long time misses it, and the read reports how many were missed.
+ *
+ * Clients long polling for changes register a waiter, a future completed by the next
+ * append, so a waiting client holds no thread.
+ ************************************************************************************/
+public class ChangeLog
+{
+	private static final int DEFAULT_CAPACITY = 1024;
+
+	private Entry[] ring;
+	private volatile long lastSequence;	//sequence number of the newest change, 0 if none, written under lock
+	private List<CompletableFuture<Void>> waiters;	//completed by the next append
+	private ReentrantLock lock;
+
+	ChangeLog()
+	{
+		this(ServerConfig.getInt("hcs.changelog.capacity", DEFAULT_CAPACITY));
+	}
+
+	ChangeLog(int capacity)
+	{
+		ring = new Entry[Math.max(1, capacity)];
+		lastSequence = 0;
+		waiters = new ArrayList<CompletableFuture<Void>>();
+		lock = new ReentrantLock();
+	}
+
+	int getCapacity() { return ring.length; }
+
+	/**
+	 * Appends a change made by the client with id originID, or -1 if it didn't come from a
+	 * client, and returns its sequence number.
+	 */
+	long append(int originID, String change)
+	{
+		long sequence;
+		List<CompletableFuture<Void>> wakeList;
+
+		lock.lock();
+		try
+		{
+			sequence = ++lastSequence;
+			ring[(int) (sequence % ring.length)] = new Entry(originID, change);
+
+			wakeList = waiters;
+			if(!wakeList.isEmpty())
+				waiters = new ArrayList<CompletableFuture<Void>>();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+
+		//wake the waiters outside the lock, their continuations read the log
+		for(CompletableFuture<Void> waiter : wakeList)
+			waiter.complete(null);
+
+		return sequence;
+	}
+
+	/**
+	 * Returns a future completed when there is a change after sequence number cursor, at
+	 * once if there already is one. A waiter that is no longer wanted, because its wait
+	 * timed out, should be removed with cancelWait.
+	 */
+	CompletableFuture<Void> awaitChangeAfter(long cursor)
+	{
+		lock.lock();
+		try
+		{
+			if(lastSequence > cursor)
+				return CompletableFuture.completedFuture(null);
+
+			CompletableFuture<Void> waiter = new CompletableFuture<Void>();
+			waiters.add(waiter);
+			return waiter;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	void cancelWait(CompletableFuture<Void> waiter)
+	{
+		lock.lock();
+		try
+		{
+			waiters.remove(waiter);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	int getWaiterCount()
+	{
+		lock.lock();
+		try
+		{
+			return waiters.size();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Sequence number of the newest change. A new client starts reading from here, so it
+	 * only sees changes made after it connected.
+	 */
+	long getLastSequence()
+	{
+		return lastSequence;	//volatile, so monitoring can read it without waiting on an append
+	}
+
+	/**
+	 * Returns the changes after sequence number cursor, leaving out those made by the client
+	 * with id readerID, who already knows about them.
+	 */
+	ReadResult readAfter(long cursor, int readerID)
+	{
+		lock.lock();
+		try
+		{
+			long oldest = Math.max(1, lastSequence - ring.length + 1);
+			long first = Math.max(cursor + 1, oldest);
+			long missed = first - (cursor + 1);
+
+			List<String> changes = new ArrayList<String>();
+			for(long seq = first; seq <= lastSequence; seq++)
+			{
+				Entry entry = ring[(int) (seq % ring.length)];
+				if(entry.originID != readerID)
+					changes.add(entry.change);
+			}
+
+			return new ReadResult(changes, lastSequence, missed);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	private static class Entry
+	{
+		private final int originID;
+		private final String change;
+
+		Entry(int originID, String change)
+		{
+			this.originID = originID;
+			this.change = change;
+		}
+	}
+
+	/*************************************************************************************
+	 * Changes returned by readAfter, the cursor to read from next time and the number of
+	 * changes that were overwritten before they could be read.
+	 ************************************************************************************/
+	static class ReadResult
+	{
+		private final List<String> changes;
+		private final long nextCursor;
+		private final long missed;
+
+		ReadResult(List<String> changes, long nextCursor, long missed)
+		{
+			this.changes = changes;
+			this.nextCursor = nextCursor;
+			this.missed = missed;
+		}
+
+		List<String> getChanges() { return changes; }
+		long getNextCursor() { return nextCursor; }
+		long getMissed() { return missed; }
+	}
+}
@@ -0,0 +1,128 @@
+package homecontrolserver;
+
+import java.io.IOException;
+
+/*************************************************************************************
+ * Circuit breaker for a remote device. While CLOSED requests pass through; after
+ * FAILURE_THRESHOLD consecutive failures the breaker OPENs and requests fail immediately
+ * with a CircuitOpenException instead of waiting on the network. Once the open period has
+ * passed the breaker goes HALF_OPEN and lets a single trial request through: success
+ * closes the breaker, failure opens it again.
+ ************************************************************************************/
+public class CircuitBreaker
+{
+	private static final int FAILURE_THRESHOLD = 3;
+	private static final long OPEN_PERIOD = 1000 * 15;	//fifteen seconds
+
+	enum State { CLOSED, OPEN, HALF_OPEN }
+
+	private String name;
+	private volatile State state;	//written under the lock, read without it by getState
+	private int consecutiveFailures;
+	private long openedTime;
+	private boolean bTrialInProgress;
+	private long rejectedCount;
+
+	CircuitBreaker(String name)
+	{
+		this.name = name;
+		state = State.CLOSED;
+		consecutiveFailures = 0;
+		openedTime = 0;
+		bTrialInProgress = false;
+		rejectedCount = 0;
+	}
+
+	/**
+	 * Returns normally if a request may be sent, otherwise throws without blocking.
+	 */
+	synchronized void checkRequestAllowed() throws CircuitOpenException
+	{
+		if(state == State.OPEN && System.currentTimeMillis() - openedTime >= OPEN_PERIOD)
+		{
+			state = State.HALF_OPEN;
+			bTrialInProgress = false;
+		}
+
+		if(state == State.CLOSED)
+			return;
+
+		if(state == State.HALF_OPEN && !bTrialInProgress)
+		{
+			bTrialInProgress = true;	//this request is the trial
+			return;
+		}
+
+		rejectedCount++;
+		throw new CircuitOpenException(name, getRetryAfter());
+	}
+
+	/**
+	 * Returns true if a request would currently be rejected.
+	 */
+	synchronized boolean isOpen()
+	{
+		return state == State.OPEN && System.currentTimeMillis() - openedTime < OPEN_PERIOD ||
+				state == State.HALF_OPEN && bTrialInProgress;
+	}
+
+	synchronized void recordSuccess()
+	{
+		if(state != State.CLOSED)
+			logTransition("closed, device is responding");
+
+		state = State.CLOSED;
+		consecutiveFailures = 0;
+		bTrialInProgress = false;
+	}
+
+	synchronized void recordFailure()
+	{
+		consecutiveFailures++;
+		if(state == State.HALF_OPEN || state == State.CLOSED && consecutiveFailures >= FAILURE_THRESHOLD)
+		{
+			state = State.OPEN;
+			openedTime = System.currentTimeMillis();
+			bTrialInProgress = false;
+			logTransition(String.format("open after %d consecutive failures, retry in %d seconds",
+										consecutiveFailures, OPEN_PERIOD / 1000));
+		}
+	}
+
+	State getState() { return state; }
+	synchronized int getConsecutiveFailures() { return consecutiveFailures; }
+	synchronized long getRejectedCount() { return rejectedCount; }
+
+	/**
+	 * Milliseconds until the breaker will next let a request through, 0 if it would now.
+	 */
+	synchronized long getRetryAfter()
+	{
+		if(state != State.OPEN)
+			return 0;
+
+		return Math.max(0, OPEN_PERIOD - (System.currentTimeMillis() - openedTime));
+	}
+
+	private void logTransition(String mssg)
+	{
+		ClientManager.getStatusSink().addLogMessage(String.format("%s circuit breaker %s", name, mssg));
+	}
+
+	/*************************************************************************************
+	 * Thrown, or used to complete a future exceptionally, when the breaker rejects a request.
+	 ************************************************************************************/
+	static class CircuitOpenException extends IOException
+	{
+		private static final long serialVersionUID = 1L;
+		private long retryAfter;
+
+		CircuitOpenException(String name, long retryAfter)
+		{
+			super(String.format("%s unavailable, circuit breaker open", name));
+			this.retryAfter = retryAfter;
+		}
+
+		long getRetryAfter() { return retryAfter; }
+	}
+}
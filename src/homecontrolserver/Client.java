@@ -1,44 +1,69 @@
 package homecontrolserver;
 
+import homecontrolclient.GarageDoor;
 import homecontrolclient.Login;
 
-import java.io.BufferedReader;
+import com.google.gson.JsonParseException;
+
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
-import java.lang.reflect.Type;
 import java.net.Socket;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.LinkedList;
+import java.util.Collections;
 import java.util.List;
-import java.util.Queue;
-
-import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
-public class Client extends Thread 
+public class Client implements Runnable
 {
+	static final String WELCOME_MESSAGE = "LOGINConnected to the Home Control Server, Please Login";
+	private static final String PING_PUSH_KEY = "ping";
+	private static final int OUTPUT_BUFFER_SIZE = 1024 * 8;
+	
+	private static final CommandDispatcher commandDispatcher = createCommandDispatcher();
+	private static final LongAdder unrecognizedCount = ServerMetrics.getInstance().getCounter(ServerMetrics.UNRECOGNIZED_COMMANDS);
+	
 	private int id;
 	private String version;
-	private ClientState state; //connected, started, logged in, dbSelected
-	private Heartbeat heartbeat;
+	private volatile ClientState state; //connected, started, logged in, dbSelected
+	private volatile Heartbeat heartbeat;
 	private int year; 	//What year data is the client connected to
     private Socket socket;
-    private BufferedReader input;
+    private ProtocolInputStream input;
+    private BufferedOutputStream rawOutput;	//binary frames are written here, below the text writer
     private PrintWriter output;
+    private volatile boolean bBinary;	//the client negotiated BinaryProtocol framing at login
     
     private GarageDoorDB garageDoorDB;
     
-    private Queue<String> changeQ; //Keeps list of change JSONs that client polls
+    private volatile long changeCursor; //sequence number of the last change log entry this client read
+    private PushQueue pushQ; //door status lines waiting to be pushed to a subscribed client
+    private AtomicInteger reportedPushDepth;	//push queue depth last shown in the client table
+    private AtomicBoolean bPushScheduled;
+    private Runnable pushDrainTask;
     
     private ClientManager clientMgr;
     private Login loginUser;
    
     private Calendar timestamp;
-    private long timeLastActive;
+    private String timestampText;	//timestamp formatted for the client table, once needed
+    private volatile long timeLastActive;
+    private volatile long pingSentTime;	//when an unanswered PING was sent, 0 if none
+    private LivenessTracker.Entry livenessEntry;	//owned by the client manager's LivenessTracker
     private String lastcommand;
+    private CompletableFuture<Void> pendingResponse;	//response still being produced, if any
+    private long pendingResponseDeadline;	//latest time pendingResponse completes, 0 if not known
+    private volatile long responsePendingUntil;	//client is waiting on a response until then, 0 if not
 
     /**
      * Constructs a handler thread for a given socket and mark
@@ -47,113 +72,127 @@ public class Client extends Thread
      * @throws IOException 
      */
     public Client(Socket socket, int id) throws IOException
+    {
+    	this(id);
+        this.socket = socket;
+        
+	    input = new ProtocolInputStream(socket.getInputStream());
+        //responses are buffered and flushed together once the client's pipelined commands
+        //have all been processed, rather than one write per response
+        rawOutput = new BufferedOutputStream(socket.getOutputStream(), OUTPUT_BUFFER_SIZE);
+        output = new PrintWriter(new OutputStreamWriter(rawOutput), false);
+            
+        //tell the client that they have successfully connected to the server
+        sendLine(WELCOME_MESSAGE);
+        flushOutput();
+    }
+    
+    /**
+     * Constructs the session state shared by every transport. Subclasses that don't use a
+     * blocking socket, such as NioClient, supply their own writeLine, writeFrame and
+     * closeClientSocket.
+     */
+    protected Client(int id)
     {
     	this.id = id;
     	version = "N/A";
     	state = ClientState.Connected;
     	heartbeat = Heartbeat.Not_Started;
     	year = -1;
-        this.socket = socket;
+    	bBinary = false;
         
         //Initialize the client manager interface
         clientMgr = ClientManager.getInstance();
         loginUser = null;
 	    timestamp = Calendar.getInstance();
 	    timeLastActive = System.currentTimeMillis();
+	    pingSentTime = 0;
+	    pendingResponseDeadline = 0;
+	    responsePendingUntil = 0;
         
-	    changeQ = new LinkedList<String>();
-        
-	    input = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        output = new PrintWriter(socket.getOutputStream(), true);
+	    changeCursor = clientMgr.getChangeLog().getLastSequence();
+	    lastcommand = "";
+	    pushQ = new PushQueue(ServerConfig.getPushQueueCapacity(), ServerConfig.getPushOverflowPolicy());
+	    reportedPushDepth = new AtomicInteger(0);
+	    bPushScheduled = new AtomicBoolean(false);
+	    pushDrainTask = new Runnable() {
+	    	public void run() { drainPushQueue(); }
+	    };
         
         garageDoorDB = GarageDoorDB.getInstance();
-            
-        //tell the client that they have successfully connected to the server
-        output.println("LOGINConnected to the Home Control Server, Please Login");
     }
     
     int getClientID() { return id; }
     ClientState getClientState() { return state; }
     Heartbeat getClientHeartbeat() { return heartbeat; }
     long getTimeLastActiveInMillis() { return timeLastActive; }
+    long getPingSentTime() { return pingSentTime; }
+    long getResponsePendingUntil() { return responsePendingUntil; }
+    LivenessTracker.Entry getLivenessEntry() { return livenessEntry; }
+    void setLivenessEntry(LivenessTracker.Entry entry) { livenessEntry = entry; }
+    String getLastCommand() { return lastcommand; }
+    String getUserID() { return loginUser == null ? null : loginUser.getUserID(); }
+    boolean isBinaryMode() { return bBinary; }
 //  int getClientUserID() { return clientUser == null ? -1 : clientUser.getID(); }
     
-    void setClientState (ClientState cs) { state = cs; }
+    /**
+     * Changes the client's state, keeping the client registry's state index current.
+     */
+    void setClientState(ClientState cs)
+    {
+    	ClientState oldState = state;
+    	state = cs;
+    	clientMgr.getClientRegistry().stateChanged(this, oldState, cs);
+    }
     void setClientHeartbeat(Heartbeat hb) { heartbeat = hb; }
 
+    /**
+     * Marks the client as started. Called once the transport is ready to process commands.
+     */
+    void clientStarted()
+    {
+    	setClientState(ClientState.Running);	//Client has started
+    	heartbeat = Heartbeat.Active;
+    	clientMgr.clientStateChanged(this);	//tell client 
+    }
+    
     /**
      * The run method of this thread.
      */
     public void run()
     {
-    	state = ClientState.Running;	//Client has started
-    	heartbeat = Heartbeat.Active;
-    	clientMgr.clientStateChanged();	//tell client 
+    	clientStarted();
     	String command = "";
-    	lastcommand = "";
     	
         try 
         {
             // Repeatedly get commands from the client and process them.
             while (state != ClientState.Ended)
             {	
-            	command = input.readLine();	//Blocks until the client sends a message to the socket
-            	lastcommand = command;
+            	//Blocks until the client sends a message to the socket
+            	if(bBinary)
+            	{
+            		input.readFrame();
+            		processFrame(input.getFrameOpcode(), input.getFrameBuffer(), 0, input.getFrameLength());
+            	}
+            	else
+            	{
+            		command = input.readLine();
+            		processCommand(command);
+            	}
             	
-            	//note the time the last command was received from the client.This is the 
-                //clients heart beat. When connected, the client should be asking for changes
-                //no less than once a second. However the heart beat rate is determined by the client
-                timeLastActive = System.currentTimeMillis();
+            	CompletableFuture<Void> pending = takePendingResponse();
+            	if(pending != null)
+            	{
+            		//send the responses already made, the ones before a slow response mustn't wait for it
+            		flushOutput();
+            		pending.join();	//wait for an asynchronous response before the next command
+            	}
             	
-                if (command.startsWith("LOGIN_REQUEST"))
-                { 
-                    String response = loginRequest(command.substring(13));
-                    output.println(response);
-                }
-                else if(command.startsWith("GET<garage_door_status>"))
-                {
-//                	clientMgr.addLogMessage(command);
-                	String response = garageDoorDB.getGarageDoorStatus();
-                	output.println(response);
-//                	clientMgr.addLogMessage(response);               	
-                }
-                else if(command.startsWith("GET<changes>"))
-                {   
-                	if(changeQ.peek() == null)
-                		output.println("NO_CHANGES");
-                	else
-                	{
-                		//bundle the change q into a list of strings and send it
-                		//to the client
-                		Gson gson = new Gson();
-                		List<String> qContents = new ArrayList<String>();
-                		Type listOfChanges = new TypeToken<ArrayList<String>>(){}.getType();
-                		
-                		while(!changeQ.isEmpty())
-	                		qContents.add(changeQ.remove());
-                		
-                		String response = gson.toJson(qContents, listOfChanges);
-                		output.println(response);
-                		clientMgr.addLogMessage("GET<changes> Response: " + response);
-                	}
-                }
-                else if(command.startsWith("POST<garage_door_status"))
-                {
-                	clientMgr.addLogMessage(command);
-                	String response = garageDoorDB.update(command.substring(23));
-                	output.println(response);
-                	clientMgr.addLogMessage(response);
-//                	clientMgr.dataChanged(this, response);
-                }
-                else if (command.startsWith("LOGOUT")) 
-                {
-                	String response = "GOODBYE";
-                	output.println(response);
-                	state = ClientState.Ended;
-                	clientMgr.clientLoggedOut(this);  
-                }
-                else
-                	output.println("UNRECOGNIZED_COMMAND" + command);
+            	//send the responses once every command the client has sent so far is answered,
+            	//unless the client has logged out, its socket is already flushed and closed
+            	if(state != ClientState.Ended && !input.ready())
+            		flushOutput();
             } 
         } 
        	catch (IOException e) 
@@ -163,15 +202,448 @@ public class Client extends Thread
        		clientMgr.addLogMessage(logMssg);
        		clientMgr.clientDied(this); 
         }
-        catch (NullPointerException npe)
+        catch (RuntimeException e)
         {
-        	String logMssg = String.format("Client %d died, NullPointerException %s, last command: %s",
-        			id, npe.getMessage(), lastcommand);
+        	//a command handler threw, or a pending response failed (CompletionException)
+        	String logMssg = String.format("Client %d died, %s %s, last command: %s",
+        			id, e.getClass().getSimpleName(), e.getMessage(), lastcommand);
         	clientMgr.addLogMessage(logMssg);
         	clientMgr.clientDied(this);
         }
     }
     
+    /**
+     * Processes one command line received from the client and sends the response. Shared by
+     * the blocking run loop and the NIO event loops, so the protocol lives in one place.
+     */
+    void processCommand(String command)
+    {
+    	lastcommand = command;
+    	
+    	commandReceived();
+    	
+        if(!commandDispatcher.dispatch(this, command))
+        {
+        	unrecognizedCount.increment();
+        	sendLine("UNRECOGNIZED_COMMAND" + command);
+        }
+    }
+    
+    /**
+     * Processes one BinaryProtocol frame received from a client that negotiated binary
+     * framing. The payload must be consumed before this returns.
+     */
+    void processFrame(int opcode, byte[] buf, int off, int len)
+    {
+    	lastcommand = BinaryProtocol.describe(opcode);
+    	commandReceived();
+    	
+    	long start = System.nanoTime();
+    	BinaryProtocol.handleFrame(this, opcode, buf, off, len);
+    	
+    	//a TEXT_COMMAND frame was timed as the text command it carries
+    	LatencyHistogram timer = BinaryProtocol.getCommandTimer(opcode);
+    	if(timer != null)
+    		recordResponseTime(timer, start);
+    }
+    
+    /**
+     * Records the time since start in a command's histogram once the command's response is
+     * ready, now or, for a response that comes later, when it arrives.
+     */
+    void recordResponseTime(final LatencyHistogram timer, final long start)
+    {
+    	CompletableFuture<Void> pending = pendingResponse;
+    	if(pending == null)
+    		timer.recordSince(start);
+    	else
+    	{
+    		pendingResponse = pending.whenComplete(new BiConsumer<Void, Throwable>() {
+    			public void accept(Void v, Throwable t)
+    			{
+    				if(t != null)
+    					timer.recordError();
+    				timer.recordSince(start);
+    			}
+    		});
+    	}
+    }
+    
+    /**
+     * Notes the time the last command was received from the client. This is the clients
+     * heart beat. When connected, the client should be asking for changes no less than once
+     * a second. However the heart beat rate is determined by the client
+     */
+    private void commandReceived()
+    {
+    	long now = System.currentTimeMillis();
+    	if(heartbeat == Heartbeat.Lost || heartbeat == Heartbeat.Terminal)
+    		clientMgr.clientHeartbeatRecovered(this, now - timeLastActive);
+    	timeLastActive = now;
+    	pingSentTime = 0;	//any command answers a PING
+    }
+    
+    /**
+     * Probes a quiet client. The client answers with PONG, or any other command.
+     */
+    void sendPing(long now)
+    {
+    	pingSentTime = now;
+    	push(PING_PUSH_KEY, "PING");
+    }
+    
+    /**
+     * Registers the protocol's commands. Each handler hands off to the client that received
+     * the command; add a command here and a method below to extend the protocol.
+     */
+    private static CommandDispatcher createCommandDispatcher()
+    {
+    	CommandDispatcher dispatcher = new CommandDispatcher();
+    	
+    	dispatcher.register("LOGIN_REQUEST", null, new CommandHandler() {
+    		public void handleCommand(Client c, String line, int argStart)
+    		{
+    			String response = c.loginRequest(line.substring(argStart));
+    			c.sendLine(response);
+    			
+    			//the login response is the last text line, the client sends frames after it
+    			if(response.equals(BinaryProtocol.VALID_BINARY))
+    				c.startBinaryMode();
+    		}
+    	});
+    	dispatcher.register("GET", "garage_door_status", new CommandHandler() {
+    		public void handleCommand(Client c, String line, int argStart)
+    		{
+    			c.garageDoorStatusCommand(parseNumberArgument(line, argStart));
+    		}
+    	});
+    	dispatcher.register("GET", "changes", new CommandHandler() {
+    		public void handleCommand(Client c, String line, int argStart)
+    		{
+    			c.changesCommand(parseNumberArgument(line, argStart));
+    		}
+    	});
+    	dispatcher.register("POST", "garage_door_status", new CommandHandler() {
+    		public void handleCommand(Client c, String line, int argStart)
+    		{
+    			GarageDoor gd;
+    			try
+    			{
+    				gd = JsonCodec.getGson().fromJson(line.substring(argStart), GarageDoor.class);
+    			}
+    			catch (JsonParseException e)
+    			{
+    				gd = null;
+    			}
+    			
+    			if(gd == null)
+    			{
+    				ClientManager.getInstance().addLogMessage(String.format("Client %d sent a malformed door update: %s",
+    						c.getClientID(), line));
+    				c.sendLine("UPDATE_GARAGE_DOOR_FAILED");
+    			}
+    			else
+    				c.garageDoorUpdateCommand(line, gd.isLeftDoorOpen(), gd.isRightDoorOpen());
+    		}
+    	});
+    	dispatcher.register("GET", "stats", new CommandHandler() {
+    		public void handleCommand(Client c, String line, int argStart)
+    		{
+    			c.sendLine("STATS" + ServerMetrics.getInstance().getStatsJson());
+    		}
+    	});
+    	dispatcher.register("SUBSCRIBE", null, new CommandHandler() {
+    		public void handleCommand(Client c, String line, int argStart)
+    		{
+    			c.subscribeCommand();
+    		}
+    	});
+    	dispatcher.register("UNSUBSCRIBE", null, new CommandHandler() {
+    		public void handleCommand(Client c, String line, int argStart)
+    		{
+    			c.unsubscribeCommand();
+    		}
+    	});
+    	dispatcher.register("PING", null, new CommandHandler() {
+    		public void handleCommand(Client c, String line, int argStart)
+    		{
+    			c.sendLine("PONG");
+    		}
+    	});
+    	dispatcher.register("PONG", null, new CommandHandler() {
+    		public void handleCommand(Client c, String line, int argStart)
+    		{
+    			//the answer to the server's PING, receiving it is all that matters
+    		}
+    	});
+    	dispatcher.register("LOGOUT", null, new CommandHandler() {
+    		public void handleCommand(Client c, String line, int argStart)
+    		{
+    			c.logoutCommand();
+    		}
+    	});
+    	
+    	return dispatcher;
+    }
+    
+    /**
+     * Sends the door status. With a version, -1 if the client has none, the status is only
+     * sent if it has changed since that version, otherwise NOT_MODIFIED is sent.
+     */
+    void garageDoorStatusCommand(long version)
+    {
+//    	clientMgr.addLogMessage(command);
+    	if(bBinary)
+    	{
+    		//binary status frames always carry the version
+    		DoorStatus status = garageDoorDB.getDoorStatus();
+    		if(status.getVersion() == version)
+    			writeFrame(BinaryProtocol.encodeNotModified());
+    		else
+    			writeFrame(status.getStatusFrame());
+    	}
+    	//GET<garage_door_status><version> only sends the status if it has changed
+    	else if(version < 0)
+    		sendLine(garageDoorDB.getGarageDoorStatus());
+    	else
+    		sendLine(garageDoorDB.getGarageDoorStatus(version));
+//    	clientMgr.addLogMessage(response);
+    }
+    
+    /**
+     * Sends the changes since the client last asked. A wait greater than 0 makes it a long
+     * poll, answered when a change arrives or the wait ends.
+     */
+    void changesCommand(long waitMillis)
+    {
+    	if(waitMillis <= 0)
+    		sendChanges(true);
+    	else
+    	{
+    		long wait = Math.min(waitMillis, ServerConfig.getMaxChangesWait());
+    		pendingResponseDeadline = System.currentTimeMillis() + wait;
+    		pendingResponse = longPollChanges(pendingResponseDeadline);
+    	}
+    }
+    
+    /**
+     * Requests the doors be moved to the given state. The command is logged as logLine.
+     */
+    void garageDoorUpdateCommand(String logLine, boolean bLeftDoorOpen, boolean bRightDoorOpen)
+    {
+    	//the Yun answers asynchronously, the response is sent when it arrives
+    	clientMgr.addLogMessage(logLine);
+    	pendingResponse = garageDoorDB.update(bLeftDoorOpen, bRightDoorOpen).thenAccept(new Consumer<String>() {
+    		public void accept(String response)
+    		{
+    			sendLine(response);
+    			clientMgr.addLogMessage(response);
+//    			clientMgr.dataChanged(Client.this, response);
+    		}
+    	});
+    }
+    
+    void subscribeCommand()
+    {
+    	//door status lines are pushed from now on, starting with the current status
+    	if(state == ClientState.Logged_In || state == ClientState.DB_Selected)
+    	{
+    		sendLine("SUBSCRIBED");
+    		clientMgr.subscribe(this, garageDoorDB.getDoorStatus());
+    	}
+    	else
+    		sendLine("SUBSCRIBE_FAILED");
+    }
+    
+    void unsubscribeCommand()
+    {
+    	clientMgr.unsubscribe(this);
+    	sendLine("UNSUBSCRIBED");
+    }
+    
+    void logoutCommand()
+    {
+    	String response = "GOODBYE";
+    	sendLine(response);
+    	flushOutput();	//on the client's own thread, closing the socket doesn't flush
+    	setClientState(ClientState.Ended);
+    	clientMgr.clientLoggedOut(this);
+    }
+    
+    /**
+     * Returns and clears the response still being produced for the last command, or null if
+     * its response has already been sent. Transports wait for it before reading the next
+     * command so responses stay in command order.
+     *
+     * While a client waits on a response, such as a long poll, nothing it sends is read, so
+     * it can't answer a PING or keep up its heart beat. Until the response is sent the client
+     * counts as alive, see getResponsePendingUntil, and its wait counts as activity.
+     */
+    CompletableFuture<Void> takePendingResponse()
+    {
+    	CompletableFuture<Void> pending = pendingResponse;
+    	long deadline = pendingResponseDeadline;
+    	pendingResponse = null;
+    	pendingResponseDeadline = 0;
+    	
+    	if(pending != null && !pending.isDone())
+    	{
+    		responsePendingUntil = deadline > 0 ? deadline : Long.MAX_VALUE;
+    		pending = pending.whenComplete(new BiConsumer<Void, Throwable>() {
+    			public void accept(Void v, Throwable t)
+    			{
+    				timeLastActive = System.currentTimeMillis();
+    				responsePendingUntil = 0;
+    			}
+    		});
+    	}
+    	
+    	return pending;
+    }
+    
+    /**
+     * Writes a text response to the output buffer, as a line or, for a binary client, as a
+     * TEXT frame. It is sent by the next flushOutput.
+     */
+    void sendLine(String line)
+    {
+    	if(bBinary)
+    		writeFrame(BinaryProtocol.encodeText(line));
+    	else
+    		writeLine(line);
+    }
+    
+    /**
+     * Sends a door status as a subscriber sees it, with its version.
+     */
+    void sendDoorStatus(DoorStatus status)
+    {
+    	if(bBinary)
+    		writeFrame(status.getStatusFrame());
+    	else
+    		writeLine(status.getVersionedStatusLine());
+    }
+    
+    /**
+     * Switches the client to BinaryProtocol framing once its login response has been
+     * written. Everything sent after it, in both directions, is framed.
+     */
+    void startBinaryMode()
+    {
+    	flushTextOutput();
+    	bBinary = true;
+    }
+    
+    /**
+     * Moves buffered lines down to the frame output so they stay ahead of any frame. The
+     * login response is still in the text writer when the client switches to frames.
+     */
+    protected void flushTextOutput()
+    {
+    	output.flush();
+    }
+    
+    /**
+     * Writes a line to the output buffer. Transports override this and writeFrame.
+     */
+    protected void writeLine(String line)
+    {
+    	output.println(line);
+    }
+    
+    /**
+     * Writes an encoded frame to the output buffer.
+     */
+    protected void writeFrame(byte[] frame)
+    {
+    	try
+    	{
+    		rawOutput.write(frame);
+    	}
+    	catch (IOException e)
+    	{
+    		//like PrintWriter, leave the failure to the read loop, which sees the socket close
+    	}
+    }
+    
+    /**
+     * Sends any buffered response lines to the client.
+     */
+    void flushOutput()
+    {
+    	output.flush();
+    }
+    
+    /**
+     * Queues a message pushed by the server, a text line or a DoorStatus, to be sent to the
+     * client. Returns at once; the message is written by schedulePushDrain's thread, so a slow
+     * client can't hold up the caller, and encoded for the client's protocol then. A queued
+     * message with the same key is replaced by this one. If the client's queue is full and the
+     * overflow policy is to disconnect, the client is disconnected.
+     */
+    void push(String key, Object message)
+    {
+    	if(!pushQ.offer(key, message))
+    	{
+    		clientMgr.pushQueueOverflow(this);
+    		return;
+    	}
+    	pushDepthChanged();
+    	
+    	if(bPushScheduled.compareAndSet(false, true))
+    		schedulePushDrain(pushDrainTask);
+    }
+    
+    int getPushQueueDepth() { return pushQ.getDepth(); }
+    long getChangeCursor() { return changeCursor; }
+    long getPushDroppedCount() { return pushQ.getDroppedCount(); }
+    
+    /**
+     * Runs the push drain task. Blocking sockets are written on the client manager's push
+     * executor; NioClient runs it on its event loop.
+     */
+    protected void schedulePushDrain(Runnable drainTask)
+    {
+    	clientMgr.getPushExecutor().execute(drainTask);
+    }
+    
+    private void drainPushQueue()
+    {
+    	Object message;
+    	while((message = pushQ.poll()) != null)
+    	{
+    		if(message instanceof DoorStatus)
+    			sendDoorStatus((DoorStatus) message);
+    		else
+    			sendLine((String) message);
+    	}
+    	pushDepthChanged();	//once for the batch, not per message
+    	flushOutput();
+    	
+    	bPushScheduled.set(false);
+    	
+    	//a line pushed after the queue emptied but before the flag cleared is drained now
+    	if(!pushQ.isEmpty() && bPushScheduled.compareAndSet(false, true))
+    		schedulePushDrain(pushDrainTask);
+    }
+    
+    /**
+     * Closes the socket without flushing, so the thread killing a client, the scheduler or
+     * the UI, can't block on a peer that stopped reading. Closing also releases a push drain
+     * stuck writing to it. Responses that must be sent first, like GOODBYE, are flushed by
+     * the client's own thread.
+     */
+    /**
+     * Tells the client table the push queue depth changed, if it differs from the depth last
+     * reported. The table applies changes once per frame however often it's told.
+     */
+    private void pushDepthChanged()
+    {
+    	int depth = pushQ.getDepth();
+    	if(reportedPushDepth.getAndSet(depth) != depth)
+    		clientMgr.clientTableChanged(this);
+    }
+    
     void closeClientSocket()
     {
     	try {
@@ -183,10 +655,106 @@ public class Client extends Thread
         }
     }
     
+    /**
+     * Sends the changes made by other clients since the last time this client asked. If there
+     * are none, sends NO_CHANGES if bAnswerNoChanges, otherwise sends nothing. Returns true if
+     * a response was sent.
+     */
+    boolean sendChanges(boolean bAnswerNoChanges)
+    {
+    	ChangeLog.ReadResult result = clientMgr.getChangeLog().readAfter(changeCursor, id);
+    	changeCursor = result.getNextCursor();
+    	if(result.getMissed() > 0)
+    		clientMgr.addLogMessage(String.format("Client %d missed %d changes", id, result.getMissed()));
+    	
+    	if(result.getChanges().isEmpty())
+    	{
+    		if(!bAnswerNoChanges)
+    			return false;
+    		
+    		if(bBinary)
+    			writeFrame(BinaryProtocol.encodeChanges(Collections.<String>emptyList()));
+    		else
+    			sendLine("NO_CHANGES");
+    		return true;
+    	}
+    	
+    	if(bBinary)
+    	{
+    		List<String> changes = result.getChanges();
+    		writeFrame(BinaryProtocol.encodeChanges(changes));
+    		clientMgr.addLogMessage(String.format("BIN<GET_CHANGES> Response: %d changes", changes.size()));
+    		return true;
+    	}
+    	
+    	//bundle the changes into a list of strings and send it
+    	//to the client
+    	String response = JsonCodec.getGson().toJson(result.getChanges(), JsonCodec.getStringListType());
+    	sendLine(response);
+    	clientMgr.addLogMessage("GET<changes> Response: " + response);
+    	return true;
+    }
+    
+    /**
+     * Answers a long poll for changes. The response is sent as soon as another client's change
+     * is in the change log, or NO_CHANGES at the deadline. While waiting the client is only a
+     * waiter on the change log and a timeout on the server scheduler, no thread is held.
+     */
+    CompletableFuture<Void> longPollChanges(final long deadline)
+    {
+    	long remaining = deadline - System.currentTimeMillis();
+    	if(sendChanges(remaining <= 0))
+    		return CompletableFuture.completedFuture(null);
+    	
+    	//nothing yet, wait for the next change or the deadline, whichever is first
+    	final ChangeLog changeLog = clientMgr.getChangeLog();
+    	final CompletableFuture<Void> waiter = changeLog.awaitChangeAfter(changeCursor);
+    	final ScheduledFuture<?> timeout = ServerScheduler.getInstance().schedule("Changes long poll timeout",
+    		new Runnable() {
+    			public void run()
+    			{
+    				changeLog.cancelWait(waiter);
+    				waiter.complete(null);
+    			}
+    		}, remaining);
+    	
+    	return waiter.thenCompose(new Function<Void, CompletionStage<Void>>() {
+    		public CompletionStage<Void> apply(Void v)
+    		{
+    			timeout.cancel(false);
+    			
+    			//the change may have been this client's own, in which case keep waiting
+    			return longPollChanges(deadline);
+    		}
+    	});
+    }
+    
+    /**
+     * Parses the optional <number> at index start of a GET command line, such as the version
+     * in GET<garage_door_status><version>. Returns -1 if there isn't one or it isn't a
+     * number, which is answered like the plain command. Parses in place, without copying.
+     */
+    static long parseNumberArgument(String line, int start)
+    {
+    	int end = line.length() - 1;
+    	if(end - start < 2 || line.charAt(start) != '<' || line.charAt(end) != '>' || end - start > 19)
+    		return -1;	//no argument, or too long to be a long
+
+    	long value = 0;
+    	for(int i = start + 1; i < end; i++)
+    	{
+    		char c = line.charAt(i);
+    		if(c < '0' || c > '9')
+    			return -1;
+    		value = value * 10 + (c - '0');
+    	}
+    	
+    	return value;
+    }
+
     String loginRequest(String loginjson)
     {
-    	Gson gson = new Gson();
-    	Login lo = gson.fromJson(loginjson, Login.class);
+    	Login lo = JsonCodec.getGson().fromJson(loginjson, Login.class);
     	
 //    	float lo_version = Float.parseFloat(lo.getVersion());
   	
@@ -195,20 +763,21 @@ public class Client extends Thread
     	if(lo != null && lo.getUserID().equals("john") && lo.getPassword().equals("erin1992"))//user found, password matches
     	{
     		//Create user json and attach to VALID response
-    		state = ClientState.Logged_In;	//Client logged in
-    		
     		loginUser = lo;
+    		setClientState(ClientState.Logged_In);	//Client logged in
+    		clientMgr.getClientRegistry().userLoggedIn(this, lo.getUserID());
     		version = lo.getVersion();
     		
-    		value = "VALID";
+    		//a "+bin" version asks for binary framing after the login
+    		value = BinaryProtocol.isBinaryVersion(version) ? BinaryProtocol.VALID_BINARY : "VALID";
     		
-    		clientMgr.clientLoginAttempt(true, String.format("Client %d, %s %s login request sucessful",
+    		clientMgr.clientLoginAttempt(this, true, String.format("Client %d, %s %s login request sucessful",
     															id, loginUser.getUserID(), loginUser.getUserID()));	
     	}
     	
     	else 	//found the user but pw is incorrect
     	{
-    		clientMgr.clientLoginAttempt(false, String.format("Client %d login request failed with v%s:"
+    		clientMgr.clientLoginAttempt(this, false, String.format("Client %d login request failed with v%s:"
     				+ " Incorrect password", id, lo.getVersion()));
     		value += "Incorrect password";
     	}
@@ -218,7 +787,7 @@ public class Client extends Thread
     
     String[] getClientTableRow()
     {
-    	String[] row = new String[9];
+    	String[] row = new String[10];
     	row[0] = Long.toString(id);
     	
     	if(loginUser != null)	//if server user is known, user their name
@@ -238,14 +807,21 @@ public class Client extends Thread
     	row[5] = heartbeat.toString().substring(0,1);	//get string of 1st character
     	row[6] = state == ClientState.DB_Selected ? Integer.toString(year) : "None";
     	row[7] = version;
-    	row[8] = new SimpleDateFormat("MM/dd H:mm:ss").format(timestamp.getTime());
+    	row[8] = getTimestampText();
+    	row[9] = Integer.toString(pushQ.getDepth());
     		
     	return row;
     }
     
-    void addChange(String change)
+    /**
+     * The connection time as shown in the client table. It never changes, so it is only
+     * formatted once.
+     */
+    private String getTimestampText()
     {
-    	changeQ.add(change);
+    	if(timestampText == null)
+    		timestampText = new SimpleDateFormat("MM/dd H:mm:ss").format(timestamp.getTime());
+    	return timestampText;
     }
     
     String getClientName()
@@ -0,0 +1,219 @@
+package homecontrolserver;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/*************************************************************************************
+ * Load generator used to compare the server's client execution modes. Start the server in
+ * the mode under test, for example
+ *
+ *   java -Dhcs.client.threads=virtual homecontrolserver.HomeControlServer
+ *
+ * then run
+ *
+ *   java homecontrolserver.ClientLoadBenchmark [host] [port] [connections] [rounds] [serverPid]
+ *
+ * The benchmark opens and logs in the requested number of connections, holds them open
+ * and then has a few driver threads issue GET<garage_door_status> round trips across all
+ * of them, reporting connection count, connect time and command latency percentiles.
+ * If the server's process id is given on Linux, the server's resident memory and thread
+ * count are sampled from /proc before connecting and with every connection open.
+ ************************************************************************************/
+public class ClientLoadBenchmark
+{
+	private static final String LOGIN = "LOGIN_REQUEST{\"userID\":\"john\",\"password\":\"erin1992\",\"version\":\"benchmark\"}";
+	private static final String STATUS_COMMAND = "GET<garage_door_status>";
+	private static final int DRIVER_THREADS = 8;
+
+	private String host;
+	private int port;
+	private int nConnections;
+	private int nRounds;
+	private String serverPid;
+
+	private List<Connection> connectionList;
+
+	ClientLoadBenchmark(String host, int port, int nConnections, int nRounds, String serverPid)
+	{
+		this.host = host;
+		this.port = port;
+		this.nConnections = nConnections;
+		this.nRounds = nRounds;
+		this.serverPid = serverPid;
+		connectionList = new ArrayList<Connection>();
+	}
+
+	void run() throws Exception
+	{
+		System.out.println(String.format("Benchmark: %s:%d, %d connections, %d rounds", host, port, nConnections, nRounds));
+		printServerFootprint("Server before connecting");
+
+		//open and log in every connection
+		long connectStart = System.nanoTime();
+		int nFailed = 0;
+		for(int i=0; i<nConnections; i++)
+		{
+			try
+			{
+				connectionList.add(new Connection(host, port));
+			}
+			catch (IOException e)
+			{
+				nFailed++;
+			}
+		}
+		long connectNanos = System.nanoTime() - connectStart;
+
+		System.out.println(String.format("Connected: %d, failed: %d, connect+login time: %d ms (%.1f us per connection)",
+				connectionList.size(), nFailed, connectNanos / 1000000,
+				connectionList.isEmpty() ? 0.0 : connectNanos / 1000.0 / connectionList.size()));
+		printServerFootprint("Server with connections open");
+
+		if(connectionList.isEmpty())
+			return;
+
+		//drive round trips from a few threads, each owning a slice of the connections
+		ExecutorService drivers = Executors.newFixedThreadPool(DRIVER_THREADS);
+		List<Future<long[]>> results = new ArrayList<Future<long[]>>();
+		int sliceSize = (connectionList.size() + DRIVER_THREADS - 1) / DRIVER_THREADS;
+		long driveStart = System.nanoTime();
+		for(int start = 0; start < connectionList.size(); start += sliceSize)
+		{
+			final List<Connection> slice = connectionList.subList(start, Math.min(start + sliceSize, connectionList.size()));
+			results.add(drivers.submit(new Callable<long[]>() {
+				public long[] call() throws IOException
+				{
+					long[] latencies = new long[slice.size() * nRounds];
+					int index = 0;
+					for(int round = 0; round < nRounds; round++)
+						for(Connection c : slice)
+							latencies[index++] = c.roundTrip(STATUS_COMMAND);
+					return latencies;
+				}
+			}));
+		}
+
+		List<long[]> latencyList = new ArrayList<long[]>();
+		for(Future<long[]> f : results)
+			latencyList.add(f.get());
+		long driveNanos = System.nanoTime() - driveStart;
+		drivers.shutdown();
+		drivers.awaitTermination(10, TimeUnit.SECONDS);
+
+		int total = 0;
+		for(long[] l : latencyList)
+			total += l.length;
+		long[] all = new long[total];
+		int pos = 0;
+		for(long[] l : latencyList)
+		{
+			System.arraycopy(l, 0, all, pos, l.length);
+			pos += l.length;
+		}
+		Arrays.sort(all);
+
+		System.out.println(String.format("Commands: %d in %d ms, %.0f commands/sec", total, driveNanos / 1000000,
+				total / (driveNanos / 1e9)));
+		System.out.println(String.format("Latency us: p50 %.1f, p90 %.1f, p99 %.1f, max %.1f",
+				percentile(all, 0.50), percentile(all, 0.90), percentile(all, 0.99), all[all.length-1] / 1000.0));
+
+		for(Connection c : connectionList)
+			c.close();
+	}
+
+	private static double percentile(long[] sorted, double p)
+	{
+		int index = (int) Math.min(sorted.length - 1, Math.round(p * (sorted.length - 1)));
+		return sorted[index] / 1000.0;
+	}
+
+	/**
+	 * Prints the VmRSS and Threads lines of /proc/<pid>/status for the server process.
+	 */
+	private void printServerFootprint(String label)
+	{
+		if(serverPid == null)
+			return;
+
+		BufferedReader reader = null;
+		try
+		{
+			reader = new BufferedReader(new FileReader("/proc/" + serverPid + "/status"));
+			StringBuffer sb = new StringBuffer(label + ":");
+			String line;
+			while((line = reader.readLine()) != null)
+				if(line.startsWith("VmRSS") || line.startsWith("Threads"))
+					sb.append(" " + line.replaceAll("\\s+", " "));
+			System.out.println(sb.toString());
+		}
+		catch (IOException e)
+		{
+			System.out.println(label + ": server footprint unavailable, " + e.getMessage());
+		}
+		finally
+		{
+			if(reader != null)
+				try { reader.close(); } catch (IOException e) {}
+		}
+	}
+
+	private static class Connection
+	{
+		private Socket socket;
+		private BufferedReader input;
+		private PrintWriter output;
+
+		Connection(String host, int port) throws IOException
+		{
+			socket = new Socket(host, port);
+			input = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+			output = new PrintWriter(socket.getOutputStream(), true);
+
+			input.readLine();	//welcome message
+			output.println(LOGIN);
+			String response = input.readLine();
+			if(response == null || !response.startsWith("VALID"))
+			{
+				close();
+				throw new IOException("Login failed: " + response);
+			}
+		}
+
+		long roundTrip(String command) throws IOException
+		{
+			long start = System.nanoTime();
+			output.println(command);
+			if(input.readLine() == null)
+				throw new IOException("Server closed connection");
+			return System.nanoTime() - start;
+		}
+
+		void close()
+		{
+			try { socket.close(); } catch (IOException e) {}
+		}
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		String host = args.length > 0 ? args[0] : "localhost";
+		int port = args.length > 1 ? Integer.parseInt(args[1]) : ServerConfig.getServerPort();
+		int nConnections = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+		int nRounds = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+		String serverPid = args.length > 4 ? args[4] : null;
+
+		new ClientLoadBenchmark(host, port, nConnections, nRounds, serverPid).run();
+	}
+}
@@ -1,130 +1,275 @@
 package homecontrolserver;
 
-import java.awt.event.ActionEvent;
-import java.awt.event.ActionListener;
+import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Type;
 import java.net.Socket;
-import java.util.ArrayList;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
-import javax.swing.ImageIcon;
-import javax.swing.Timer;
 
-public class ClientManager implements ActionListener
+public class ClientManager implements DoorStatusListener, ClientManagerMXBean
 {
 	private static final boolean CLIENT_TIMER_ENABLED = true;
-	private static final int CLIENT_HEARTBEAT_SAMPLE_RATE = 1000 * 60 * 1; //one minute
-	private static final int CLIENT_INACTIVE_LIMIT = 1000 * 60 * 3; //three minutes
-	private static final int CLIENT_TERMINAL_LIMIT = 1000 * 60 * 10; //ten minutes
+	private static final int CLIENT_LIVENESS_TICK = 1000; //one second
 	
-	//client timeouts used for test only
-//	private static final int CLIENT_HEARTBEAT_SAMPLE_RATE = 1000 * 10; //ten seconds
-//	private static final int CLIENT_INACTIVE_LIMIT = 1000 * 30; //thirty seconds
-//	private static final int CLIENT_TERMINAL_LIMIT = 1000 * 60 * 1; //one minutes
+	private static final String DOOR_STATUS_PUSH_KEY = "door_status";	//a newer status replaces a queued one
 	
 	private static ClientManager instance = null;
+	private static ServerStatusSink statusSink = null;
 	
-	private ArrayList<Client> clientAL;	//list of clients connected to server
+	private ClientRegistry clientRegistry;	//clients connected to server, by id, state and user
+	private ChangeLog changeLog;	//changes clients poll for, shared by every client
+	private List<Client> subscriberList;	//clients that asked for door status pushes
+	private ExecutorService pushExecutor;	//writes pushed lines to blocking sockets
 	private int clientID;	
-	private ServerUI serverUI;
+	private ServerStatusSink serverUI;	//Swing window or console when headless
 	
-	private Timer clientTimer;
+	private LivenessTracker livenessTracker;	//when each client's heart beat is next due
+	private long heartbeatLostLimit, heartbeatTerminalLimit, heartbeatKillLimit;
+	private long pingIdleLimit, pingTimeout;	//PING probes are off if pingIdleLimit is 0
+	private ServerScheduler.PeriodicTask clientHeartbeatTask;
+	private ClientThreadFactory clientThreadFactory;	//platform or virtual threads for blocking clients
 	
 	private ClientManager()
 	{
-		clientAL = new ArrayList<Client>();
+		clientRegistry = new ClientRegistry();
+		changeLog = new ChangeLog();
 		clientID = 0;
 		
-		serverUI = ServerUI.getInstance();	//reference for client manager to communicate with UI
-		serverUI.btnKillClient.addActionListener(this);
+		serverUI = getStatusSink();	//reference for client manager to communicate with UI
 		
-		//Create the client timer and enable it if CLIENT_TIMER_ENABLED
-		clientTimer = new Timer(CLIENT_HEARTBEAT_SAMPLE_RATE, new ClientTimerListener());
-				if(CLIENT_TIMER_ENABLED)
-					clientTimer.start();
+		clientThreadFactory = new ClientThreadFactory(ServerConfig.getClientThreadMode());
+		if(clientThreadFactory.getFallbackReason() != null)
+			serverUI.addLogMessage(clientThreadFactory.getFallbackReason());
+		
+		//pushes to a slow client only hold a push thread, never the door poller
+		subscriberList = new CopyOnWriteArrayList<Client>();
+		pushExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable r)
+			{
+				Thread t = clientThreadFactory.newThread(r, "ClientPush");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		
+		//heart beat limits, set in seconds with -Dhcs.heartbeat.lost, .terminal and .kill
+		heartbeatLostLimit = ServerConfig.getHeartbeatLostLimit();
+		heartbeatTerminalLimit = ServerConfig.getHeartbeatTerminalLimit();
+		heartbeatKillLimit = ServerConfig.getHeartbeatKillLimit();
+		pingIdleLimit = ServerConfig.getPingIdleLimit();
+		pingTimeout = ServerConfig.getPingTimeout();
+		livenessTracker = new LivenessTracker(CLIENT_LIVENESS_TICK, new LivenessTracker.ExpiryHandler() {
+			public long deadlineExpired(Client c, long now)
+			{
+				return checkClientHeartbeat(c, now);
+			}
+		});
+		
+		//Schedule the client heart beat check on the server scheduler if CLIENT_TIMER_ENABLED
+		if(CLIENT_TIMER_ENABLED)
+			clientHeartbeatTask = ServerScheduler.getInstance().scheduleWithFixedDelay("Client heart beat check",
+									new ClientHeartbeatTask(), CLIENT_LIVENESS_TICK, CLIENT_LIVENESS_TICK);
 	}
 	
 	public static ClientManager getInstance()
 	{
 		if(instance == null)
+		{
 			instance = new ClientManager();
+			ServerMBeans.register("ClientManager", instance);
+		}
 		
 		return instance;
 	}
 	
+	/**
+	 * Sets where status updates go. Must be called before the first call to getInstance;
+	 * if it isn't, status is written to the console. Log messages are also written to the
+	 * log file unless it has been turned off.
+	 */
+	static void setStatusSink(ServerStatusSink sink)
+	{
+		String logFile = ServerConfig.getLogFile();
+		if(logFile == null)
+			statusSink = sink;
+		else
+			statusSink = new LoggingStatusSink(sink, new FileLogger(new File(logFile),
+								ServerConfig.getLogFileMaxSize(), ServerConfig.getLogFileCount(),
+								ServerConfig.getLogRotation()));
+	}
+	
+	static ServerStatusSink getStatusSink()
+	{
+		if(statusSink == null)
+			setStatusSink(new ConsoleStatusSink(System.out));
+		
+		return statusSink;
+	}
+	
+	/**
+	 * Writes any log messages still queued for the log file and closes it, and writes those
+	 * still queued for the console.
+	 */
+	static void closeLogFile()
+	{
+		ServerStatusSink sink = statusSink;
+		if(sink instanceof LoggingStatusSink)
+		{
+			((LoggingStatusSink) sink).getFileLogger().close();
+			sink = ((LoggingStatusSink) sink).getSink();
+		}
+		
+		if(sink instanceof ConsoleStatusSink)
+			((ConsoleStatusSink) sink).close();
+	}
+	
+	/**
+	 * Creates the server loop selected in ServerConfig, thread per client or NIO. Throws if
+	 * the server port can't be opened.
+	 */
+	ServerInterface createServerLoop() throws IOException
+	{
+		ServerInterface loop;
+		if(ServerConfig.isNioEngine())
+			loop = new NioServerLoop(this);
+		else
+			loop = new ServerLoop(this);
+		
+		ServerMBeans.register("ServerLoop", loop);
+		return loop;
+	}
+	
+	String getServerLoopDescription()
+	{
+		if(ServerConfig.isNioEngine())
+			return "nio engine";
+		else
+			return String.format("thread engine, %s client threads", clientThreadFactory.getModeName());
+	}
+	
 	void clientDied(Client c)
 	{
+		subscriberList.remove(c);
 		c.closeClientSocket();
-		clientAL.remove(c);
-		serverUI.displayClientTable(clientAL);
+		clientRegistry.remove(c);
+		livenessTracker.untrack(c);
+		serverUI.clientChanged(c, clientRegistry.size());
 	}
 	
 	void clientQuit(Client c)
 	{
 		serverUI.addLogMessage(String.format("Client %d quit", c.getClientID()));
+		subscriberList.remove(c);
 		c.closeClientSocket();
-		clientAL.remove(c);
-		serverUI.displayClientTable(clientAL);
+		clientRegistry.remove(c);
+		livenessTracker.untrack(c);
+		serverUI.clientChanged(c, clientRegistry.size());
 	}
 	
 	void killClient(Client c)
 	{
 		serverUI.addLogMessage(String.format("Client %d killed", c.getClientID()));
+		subscriberList.remove(c);
+		c.closeClientSocket();
+		clientRegistry.remove(c);
+		livenessTracker.untrack(c);
+		serverUI.clientChanged(c, clientRegistry.size());
+	}
+	
+	/**
+	 * Called when a client's row in the client table changed but nothing else about the
+	 * client did, such as its push queue depth.
+	 */
+	void clientTableChanged(Client c)
+	{
+		serverUI.clientChanged(c, clientRegistry.size());
+	}
+	
+	/**
+	 * Disconnects a client whose push queue overflowed under the disconnect policy.
+	 */
+	void pushQueueOverflow(Client c)
+	{
+		if(!subscriberList.remove(c))
+			return;	//already disconnected
+		
+		serverUI.addLogMessage(String.format("Client %d push queue full, disconnecting", c.getClientID()));
 		c.closeClientSocket();
-		clientAL.remove(c);
-		serverUI.displayClientTable(clientAL);
+		clientRegistry.remove(c);
+		livenessTracker.untrack(c);
+		serverUI.clientChanged(c, clientRegistry.size());
 	}
 	
 	void clientLoggedOut(Client c)
 	{
 		serverUI.addLogMessage(String.format("Client %d, %s logged out", c.getClientID(),
 												c.getClientName()));
+		subscriberList.remove(c);
 		c.closeClientSocket();
-		clientAL.remove(c);
-		serverUI.displayClientTable(clientAL);
+		clientRegistry.remove(c);
+		livenessTracker.untrack(c);
+		serverUI.clientChanged(c, clientRegistry.size());
 	}
 	
 	synchronized Client addClient(Socket socket) throws IOException
 	{
 		Client c = new Client(socket, clientID);
-		clientAL.add(c);
-		serverUI.displayClientTable(clientAL);
-		c.start();
+		clientRegistry.add(c);
+		livenessTracker.track(c, c.getTimeLastActiveInMillis() + getFirstCheckDelay());
+		serverUI.clientChanged(c, clientRegistry.size());
+		clientThreadFactory.newThread(c, "Client-" + clientID).start();
 		serverUI.addLogMessage(String.format("Client %d connected", clientID));
 		clientID++;
 		
 		return c; 
 	}
 	
+	/*************************************************************************************
+	 * Adds a client whose socket channel is serviced by an NIO event loop rather than its
+	 * own thread. Called on the event loop thread that owns the channel's selection key.
+	 * **********************************************************************************/
+	synchronized NioClient addClient(SocketChannel channel, SelectionKey key, NioEventLoop loop)
+	{
+		NioClient c = new NioClient(channel, key, loop, clientID);
+		clientRegistry.add(c);
+		livenessTracker.track(c, c.getTimeLastActiveInMillis() + getFirstCheckDelay());
+		serverUI.clientChanged(c, clientRegistry.size());
+		c.clientStarted();
+		serverUI.addLogMessage(String.format("Client %d connected", clientID));
+		clientID++;
+		
+		return c;
+	}
+	
 	/*************************************************************************************
 	 * Find a client by client id. If client id is not logged into the server, return null,
 	 * otherwise return a reference to the client.
 	 * **********************************************************************************/
 	Client findClient(long clientID)
 	{
-		//Search for client
-		int index = 0;
-		while(index < clientAL.size() && clientAL.get(index).getClientID() != clientID)
-			index++;
-			
-		if(index < clientAL.size())
-			return clientAL.get(index);
-		else
-			return null;	//client not found
+		return clientRegistry.get(clientID);
 	}
 	
-	void clientLoginAttempt(boolean bValid, String mssg)
+	void clientLoginAttempt(Client c, boolean bValid, String mssg)
 	{
 		serverUI.addLogMessage(mssg);
 		
 		if(bValid)	//redraw table, we now know who the client is
-			serverUI.displayClientTable(clientAL);
+			serverUI.clientChanged(c, clientRegistry.size());
 	}
 	
-	void clientStateChanged()
+	void clientStateChanged(Client c)
 	{
-		serverUI.displayClientTable(clientAL);
+		serverUI.clientChanged(c, clientRegistry.size());
 	}
 	
 	void addLogMessage(String mssg)
@@ -132,124 +277,283 @@ public class ClientManager implements ActionListener
 		serverUI.addLogMessage(mssg);
 	}
 	
+	ChangeLog getChangeLog() { return changeLog; }
+	ClientRegistry getClientRegistry() { return clientRegistry; }
+	
 	void dataChanged(Client requestingClient, String change)
 	{
-		//Need to add change to all client changes lists so they can poll for the change
-		for(Client c:clientAL )
-		{
-			//Add change to the change queue's of every other client
-			if(c != requestingClient)	
-				c.addChange(change);		
-		}
+		//Add the change to the change log once. Every other client reads it from there when
+		//it polls, the requesting client skips it
+		changeLog.append(requestingClient == null ? -1 : requestingClient.getClientID(), change);
+	}
+	
+	/**
+	 * Starts pushing door status changes to a client, beginning with the current status.
+	 */
+	void subscribe(Client c, DoorStatus current)
+	{
+		if(!subscriberList.contains(c))
+			subscriberList.add(c);
+		
+		c.push(DOOR_STATUS_PUSH_KEY, current);
 	}
 	
-	ImageIcon getAppIcon() { return serverUI.getIcon(0); }
+	void unsubscribe(Client c)
+	{
+		subscriberList.remove(c);
+	}
+	
+	@Override
+	public int getSubscriberCount() { return subscriberList.size(); }
+	
+	ExecutorService getPushExecutor() { return pushExecutor; }
+	
+	/**
+	 * Called by GarageDoorDB when a door opens or closes. The change goes into the change log
+	 * for polling clients and is pushed to every subscriber, encoded for each subscriber's
+	 * protocol when it is sent. Pushed statuses carry their version so a subscriber can
+	 * ignore one older than a status it already has.
+	 */
+	@Override
+	public void doorStatusChanged(DoorStatus status)
+	{
+		dataChanged(null, status.getStatusLine());
+		
+		for(Client c : subscriberList)
+			c.push(DOOR_STATUS_PUSH_KEY, status);
+	}
 	
 	/***************************************************************************************
-	 * This method checks all active clients to assess their heart beat according to the 
-	 * heart beat state diagram. The method creates a list of all client heart beats that
-	 * have gone terminal and are still lost, in order to kill the client and remove them 
-	 * from the client manager queue 
+	 * Called by the liveness tracker when a client's heart beat deadline passes. Moves the
+	 * client along the heart beat state diagram, Active, Lost, Terminal, and kills it if it
+	 * has been quiet past the kill limit. Clients that haven't logged in are killed at the
+	 * lost limit. Returns when the client's heart beat is next due, or 0 if it was killed or
+	 * is gone. A client's recovery is noted as soon as it sends a command, see
+	 * clientHeartbeatRecovered. If PING probes are enabled, quiet clients are also probed.
+	 * A client waiting on a response, such as a long poll, is alive until the response is
+	 * sent; it can't be heard from meanwhile.
 	 */
-	void checkClientHeartbeat()
+	long checkClientHeartbeat(Client c, long now)
 	{
-		//For each client that is supposed to have a heart beat (State is Logged_In or DB_Selected)
-		//check that they still have a heart beat. If they don't have a heart beat, create a list
-		//for notification and kill. For clients that are running but haven't logged in, if they
-		//exceed the log in time, kill them
-		ArrayList<Client> killClientList = new ArrayList<Client>();
+		ClientState clientState = c.getClientState();
+		if(clientState == ClientState.Ended || findClient(c.getClientID()) != c)
+			return 0;
+		
+		long responsePendingUntil = c.getResponsePendingUntil();
+		if(responsePendingUntil > 0)
+		{
+			//check again when the wait ends, or if its end isn't known, a check interval from now
+			if(responsePendingUntil > now && responsePendingUntil != Long.MAX_VALUE)
+				return responsePendingUntil;
+			return now + getFirstCheckDelay();
+		}
 		
-//		if(clientAL.size() > 0)	//add a hb check mssg to log if there any clients
-//			addLogMessage("Server Checking Client heart beats");
+		long lastActive = c.getTimeLastActiveInMillis();
+		long timeSinceLastHeartbeat = now - lastActive;
 		
-		for(Client c: clientAL)	
+		if(clientState == ClientState.Connected || clientState == ClientState.Running)
 		{
-			ClientState clientState = c.getClientState();
-			long timeSinceLastHeartbeat = System.currentTimeMillis() - c.getTimeLastActiveInMillis();
+			//checked again in time to probe it should it log in meanwhile
+			if(timeSinceLastHeartbeat < heartbeatLostLimit)
+				return lastActive + getFirstCheckDelay();
 			
-			if(clientState == ClientState.Running  && timeSinceLastHeartbeat > CLIENT_INACTIVE_LIMIT)
-			{
-				killClientList.add(c);
-			}
-			else if(clientState == ClientState.Logged_In || clientState == ClientState.DB_Selected)
-			{
-//				System.out.println(String.format("Checking if Client %d still has a heart beat", c.getClientID()));
-				if(c.getClientHeartbeat() == Heartbeat.Terminal && timeSinceLastHeartbeat  > CLIENT_TERMINAL_LIMIT)
-				{
-					//Heart beat is terminal  and remained lost past the terminal time limit
-					//kill the client by closing the socket which causes an IO exception which
-					//will terminate the client thread
-					killClientList.add(c);
-				}
-				else if(c.getClientHeartbeat() == Heartbeat.Lost && timeSinceLastHeartbeat  > CLIENT_TERMINAL_LIMIT)
-				{
-					//Heart beat was lost and remained lost past the terminal time limit
-					c.setClientHeartbeat(Heartbeat.Terminal);
-					serverUI.displayClientTable(clientAL);
-				
-					String mssg = String.format("Client %d heart beat terminal, not detected in %d seconds",
-													c.getClientID(), timeSinceLastHeartbeat/1000);
-				
-					addLogMessage(mssg);
-				}
-				else if(c.getClientHeartbeat() == Heartbeat.Active && timeSinceLastHeartbeat > CLIENT_INACTIVE_LIMIT)
-				{
-					//Heart beat was not detected
-					c.setClientHeartbeat(Heartbeat.Lost);
-					serverUI.displayClientTable(clientAL);
-				
-					String mssg = String.format("Client %d heart beat lost, not detected in %d seconds",
-													c.getClientID(), timeSinceLastHeartbeat/1000);
-				
-					addLogMessage(mssg);		
-				}
-				else if((c.getClientHeartbeat() == Heartbeat.Lost || c.getClientHeartbeat() == Heartbeat.Terminal) && 
-							timeSinceLastHeartbeat < CLIENT_INACTIVE_LIMIT)
-				{
-					//Heart beat was lost and is still lost or went terminal and re-recovered prior to
-					//killing the client
-					c.setClientHeartbeat(Heartbeat.Active);
-					serverUI.displayClientTable(clientAL);
-				
-					String mssg = String.format("Client %d heart beat recovered, detected in %d seconds",
-													c.getClientID(), timeSinceLastHeartbeat/1000);
-				
-					addLogMessage(mssg);		
-				}
-			}
+			killInactiveClient(c, String.format("Client %d heart beat remained terminal, client killed",
+													c.getClientID()));
+			return 0;
 		}
+		
+		long next = updateHeartbeat(c, lastActive, timeSinceLastHeartbeat);
+		if(next == 0 || pingIdleLimit == 0)
+			return next;
+		
+		return Math.min(next, probeClient(c, now));
+	}
+	
+	/**
+	 * Moves a logged in client along the heart beat state diagram. Returns when its heart
+	 * beat is next due, or 0 if it was killed.
+	 */
+	private long updateHeartbeat(Client c, long lastActive, long timeSinceLastHeartbeat)
+	{
+		Heartbeat heartbeat = c.getClientHeartbeat();
+		if(timeSinceLastHeartbeat >= heartbeatKillLimit && heartbeat == Heartbeat.Terminal)
+		{
+			//Heart beat is terminal and remained lost past the kill limit. Kill the client by
+			//closing the socket which causes an IO exception which will terminate the client thread
+			killInactiveClient(c, String.format("Client %d heart beat remained terminal, client killed",
+													c.getClientID()));
+			return 0;
+		}
+		else if(timeSinceLastHeartbeat >= heartbeatTerminalLimit && heartbeat != Heartbeat.Terminal)
+		{
+			//Heart beat was lost and remained lost past the terminal time limit
+			c.setClientHeartbeat(Heartbeat.Terminal);
+			serverUI.clientChanged(c, clientRegistry.size());
 			
-		//if there are any clients to kill, kill them here
-		for(Client kc : killClientList)
+			addLogMessage(String.format("Client %d heart beat terminal, not detected in %d seconds",
+											c.getClientID(), timeSinceLastHeartbeat/1000));
+			return lastActive + heartbeatKillLimit;
+		}
+		else if(timeSinceLastHeartbeat >= heartbeatLostLimit && heartbeat == Heartbeat.Active)
 		{
-			kc.setClientState(ClientState.Ended);
-			kc.closeClientSocket();
-			clientDied(kc);
+			//Heart beat was not detected
+			c.setClientHeartbeat(Heartbeat.Lost);
+			serverUI.clientChanged(c, clientRegistry.size());
 			
-			String mssg = String.format("Client %d heart beat remained terminal, client killed", kc.getClientID());					
-			addLogMessage(mssg);
+			addLogMessage(String.format("Client %d heart beat lost, not detected in %d seconds",
+											c.getClientID(), timeSinceLastHeartbeat/1000));
+			return lastActive + heartbeatTerminalLimit;
 		}
-	}	
+		
+		//the client has been active since its deadline was set, the next one is due a limit
+		//after its last command
+		if(heartbeat == Heartbeat.Terminal)
+			return lastActive + heartbeatKillLimit;
+		else if(heartbeat == Heartbeat.Lost)
+			return lastActive + heartbeatTerminalLimit;
+		else
+			return lastActive + heartbeatLostLimit;
+	}
+	
+	/**
+	 * Called by a client whose heart beat was lost or terminal when it sends a command.
+	 */
+	void clientHeartbeatRecovered(Client c, long timeSinceLastHeartbeat)
+	{
+		//Heart beat was lost and is still lost or went terminal and re-recovered prior to
+		//killing the client
+		c.setClientHeartbeat(Heartbeat.Active);
+		serverUI.clientChanged(c, clientRegistry.size());
+		
+		addLogMessage(String.format("Client %d heart beat recovered, detected in %d seconds",
+										c.getClientID(), timeSinceLastHeartbeat/1000));
+	}
+	
+	/**
+	 * Time from a client's last command to its first check, the lost limit or, if sooner,
+	 * the PING idle limit.
+	 */
+	private long getFirstCheckDelay()
+	{
+		return pingIdleLimit > 0 ? Math.min(heartbeatLostLimit, pingIdleLimit) : heartbeatLostLimit;
+	}
 	
-	private class ClientTimerListener implements ActionListener
+	/**
+	 * Sends a PING to a client that has been quiet for the PING idle limit, and kills one
+	 * that hasn't sent anything, PONG or any other command, within the PING timeout. Catches
+	 * connections that died without closing, such as a phone that lost its Wi-Fi, long
+	 * before the heart beat would. Returns when the client should next be checked, or 0 if
+	 * it was killed.
+	 */
+	private long probeClient(Client c, long now)
 	{
-		@Override
-		public void actionPerformed(ActionEvent arg0) 
+		long pingSent = c.getPingSentTime();
+		if(pingSent > 0)
 		{
-			checkClientHeartbeat();
+			if(now - pingSent < pingTimeout)
+				return pingSent + pingTimeout;
+			
+			killInactiveClient(c, String.format("Client %d didn't answer PING in %d seconds, client killed",
+													c.getClientID(), (now - pingSent)/1000));
+			return 0;
 		}
+		
+		long lastActive = c.getTimeLastActiveInMillis();
+		if(now - lastActive < pingIdleLimit)
+			return lastActive + pingIdleLimit;
+		
+		c.sendPing(now);
+		return now + pingTimeout;
 	}
-
+	
+	private void killInactiveClient(Client c, String mssg)
+	{
+		c.setClientState(ClientState.Ended);
+		c.closeClientSocket();
+		clientDied(c);
+		
+		addLogMessage(mssg);
+	}
+	
+	LivenessTracker getLivenessTracker() { return livenessTracker; }
+	
+	//ClientManagerMXBean, read from the JMX thread without locking
+	@Override
+	public int getClientCount() { return clientRegistry.size(); }
+	
+	@Override
+	public Map<String, Integer> getClientCountsByState()
+	{
+		Map<String, Integer> counts = new LinkedHashMap<String, Integer>();
+		for(ClientState cs : ClientState.values())
+			counts.put(cs.name(), clientRegistry.getClientsInState(cs).size());
+		
+		return counts;
+	}
+	
+	@Override
+	public Map<String, Integer> getClientCountsByHeartbeat()
+	{
+		int[] counts = new int[Heartbeat.values().length];
+		for(Client c : clientRegistry.getClients())
+			counts[c.getClientHeartbeat().ordinal()]++;
+		
+		Map<String, Integer> byName = new LinkedHashMap<String, Integer>();
+		for(Heartbeat hb : Heartbeat.values())
+			byName.put(hb.name(), counts[hb.ordinal()]);
+		
+		return byName;
+	}
+	
+	@Override
+	public int getTotalPushQueueDepth()
+	{
+		int total = 0;
+		for(Client c : subscriberList)
+			total += c.getPushQueueDepth();
+		
+		return total;
+	}
+	
+	@Override
+	public int getMaxPushQueueDepth()
+	{
+		int max = 0;
+		for(Client c : subscriberList)
+			max = Math.max(max, c.getPushQueueDepth());
+		
+		return max;
+	}
+	
 	@Override
-	public void actionPerformed(ActionEvent e) 
+	public long getMaxChangeBacklog()
 	{
-		if(e.getSource() == serverUI.btnKillClient)
+		long last = changeLog.getLastSequence();
+		long max = 0;
+		for(Client c : clientRegistry.getClients())
+			max = Math.max(max, last - c.getChangeCursor());
+		
+		//entries older than the ring has room for are gone, a client can't be further behind
+		return Math.min(max, changeLog.getCapacity());
+	}
+	
+	@Override
+	public boolean killClient(int clientID)
+	{
+		Client c = findClient(clientID);
+		if(c == null)
+			return false;
+		
+		killClient(c);
+		return true;
+	}
+	
+	private class ClientHeartbeatTask implements Runnable
+	{
+		@Override
+		public void run() 
 		{
-			Client c = serverUI.getClientTableSelection();
-			if(c != null)
-			{
-				killClient(c);
-			}
-		}	
+			livenessTracker.advance(System.currentTimeMillis());
+		}
 	}
 }
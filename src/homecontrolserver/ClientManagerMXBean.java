@@ -0,0 +1,42 @@
+package homecontrolserver;
+
+import java.util.Map;
+
+/*************************************************************************************
+ * JMX view of the connected clients, registered as homecontrolserver:type=ClientManager.
+ * Every attribute is read from concurrent collections and volatile fields, so a JMX
+ * console polling it never waits on a client thread, an event loop or the EDT.
+ ************************************************************************************/
+public interface ClientManagerMXBean
+{
+	int getClientCount();
+
+	/**
+	 * Connected clients in each ClientState, by state name.
+	 */
+	Map<String, Integer> getClientCountsByState();
+
+	/**
+	 * Connected clients in each Heartbeat state, by heart beat name.
+	 */
+	Map<String, Integer> getClientCountsByHeartbeat();
+
+	int getSubscriberCount();
+
+	/**
+	 * Door status pushes queued for all subscribed clients, and for the most backed up one.
+	 */
+	int getTotalPushQueueDepth();
+
+	int getMaxPushQueueDepth();
+
+	/**
+	 * Most change log entries any client has yet to read with GET<changes>.
+	 */
+	long getMaxChangeBacklog();
+
+	/**
+	 * Disconnects a client, as the Kill button does. Returns false if no client has the id.
+	 */
+	boolean killClient(int clientID);
+}
@@ -0,0 +1,137 @@
+package homecontrolserver;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/*************************************************************************************
+ * The connected clients, keyed by client id, with secondary indexes by client state and by
+ * logged in user. Clients are added by the server loops and removed from client threads,
+ * event loops and the scheduler, so every map and index set is concurrent: lookups and
+ * removals are O(1) and iteration never throws ConcurrentModificationException, it sees
+ * the registry as it was at some point during the iteration.
+ *
+ * Clients report their own state changes and logins, see stateChanged and userLoggedIn,
+ * which keeps the indexes current without scanning.
+ ************************************************************************************/
+public class ClientRegistry
+{
+	private ConcurrentMap<Integer, Client> clientMap;
+	private EnumMap<ClientState, Set<Client>> stateIndex;	//fixed at construction, only the sets change
+	private ConcurrentMap<String, Set<Client>> userIndex;
+
+	ClientRegistry()
+	{
+		clientMap = new ConcurrentHashMap<Integer, Client>();
+		stateIndex = new EnumMap<ClientState, Set<Client>>(ClientState.class);
+		for(ClientState cs : ClientState.values())
+			stateIndex.put(cs, ConcurrentHashMap.<Client>newKeySet());
+		userIndex = new ConcurrentHashMap<String, Set<Client>>();
+	}
+
+	void add(Client c)
+	{
+		clientMap.put(c.getClientID(), c);
+		stateIndex.get(c.getClientState()).add(c);
+		if(c.getUserID() != null)
+			userLoggedIn(c, c.getUserID());
+	}
+
+	/**
+	 * Removes a client from the registry and its indexes. Returns false if it had already
+	 * been removed, so a client that dies several ways is only cleaned up once.
+	 */
+	boolean remove(Client c)
+	{
+		if(!clientMap.remove(c.getClientID(), c))
+			return false;
+
+		for(Set<Client> stateSet : stateIndex.values())
+			stateSet.remove(c);
+
+		String userID = c.getUserID();
+		if(userID != null)
+		{
+			Set<Client> userSet = userIndex.get(userID);
+			if(userSet != null)
+			{
+				userSet.remove(c);
+				if(userSet.isEmpty())
+					userIndex.remove(userID, userSet);
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Moves a registered client between state indexes. Called by the client when its state
+	 * changes; unregistered clients are ignored.
+	 */
+	void stateChanged(Client c, ClientState oldState, ClientState newState)
+	{
+		if(oldState == newState || clientMap.get(c.getClientID()) != c)
+			return;
+
+		stateIndex.get(oldState).remove(c);
+		stateIndex.get(newState).add(c);
+
+		//removed while moving, don't leave it behind in the index
+		if(clientMap.get(c.getClientID()) != c)
+			stateIndex.get(newState).remove(c);
+	}
+
+	/**
+	 * Indexes a registered client under the user it logged in as.
+	 */
+	void userLoggedIn(Client c, String userID)
+	{
+		if(clientMap.get(c.getClientID()) != c)
+			return;
+
+		Set<Client> userSet = userIndex.get(userID);
+		if(userSet == null)
+		{
+			Set<Client> newSet = ConcurrentHashMap.<Client>newKeySet();
+			userSet = userIndex.putIfAbsent(userID, newSet);
+			if(userSet == null)
+				userSet = newSet;
+		}
+		userSet.add(c);
+
+		if(clientMap.get(c.getClientID()) != c)
+			userSet.remove(c);
+	}
+
+	Client get(long clientID)
+	{
+		if(clientID < Integer.MIN_VALUE || clientID > Integer.MAX_VALUE)
+			return null;
+
+		return clientMap.get((int) clientID);
+	}
+
+	int size() { return clientMap.size(); }
+
+	/**
+	 * Live view of every registered client, safe to iterate while clients come and go.
+	 */
+	Collection<Client> getClients() { return clientMap.values(); }
+
+	/**
+	 * Live view of the clients in a state.
+	 */
+	Set<Client> getClientsInState(ClientState cs) { return Collections.unmodifiableSet(stateIndex.get(cs)); }
+
+	/**
+	 * Live view of the clients logged in as a user, empty if there are none.
+	 */
+	Set<Client> getClientsForUser(String userID)
+	{
+		Set<Client> userSet = userIndex.get(userID);
+		return userSet == null ? Collections.<Client>emptySet() : Collections.unmodifiableSet(userSet);
+	}
+}
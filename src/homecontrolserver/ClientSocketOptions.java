@@ -0,0 +1,51 @@
+package homecontrolserver;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+
+import jdk.net.ExtendedSocketOptions;
+
+/*************************************************************************************
+ * Applies the configured TCP options to each accepted client socket. With keepalive on,
+ * the kernel probes connections that have gone quiet and closes the ones whose peer is
+ * gone, which ends a blocked read with an I/O exception and frees the client. The keepalive
+ * timing options aren't available on every platform; if one isn't, it is skipped and
+ * logged once.
+ ************************************************************************************/
+public class ClientSocketOptions
+{
+	private static volatile boolean bUnsupportedLogged = false;
+
+	private ClientSocketOptions() {}
+
+	/**
+	 * Sets the options on a newly accepted socket. NIO clients pass their channel's socket.
+	 */
+	static void apply(Socket socket) throws IOException
+	{
+		if(!ServerConfig.isSocketKeepAlive())
+			return;
+
+		socket.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+		setIfSupported(socket, ExtendedSocketOptions.TCP_KEEPIDLE, ServerConfig.getSocketKeepIdle());
+		setIfSupported(socket, ExtendedSocketOptions.TCP_KEEPINTERVAL, ServerConfig.getSocketKeepInterval());
+		setIfSupported(socket, ExtendedSocketOptions.TCP_KEEPCOUNT, ServerConfig.getSocketKeepCount());
+	}
+
+	private static void setIfSupported(Socket socket, SocketOption<Integer> option, int value) throws IOException
+	{
+		if(value <= 0)
+			return;	//leave the system default
+
+		if(socket.supportedOptions().contains(option))
+			socket.setOption(option, value);
+		else if(!bUnsupportedLogged)
+		{
+			bUnsupportedLogged = true;
+			ClientManager.getInstance().addLogMessage(String.format("Socket option %s isn't supported, using the system default",
+																	option.name()));
+		}
+	}
+}
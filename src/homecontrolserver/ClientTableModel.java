@@ -0,0 +1,157 @@
+package homecontrolserver;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.swing.Timer;
+import javax.swing.table.AbstractTableModel;
+
+/*************************************************************************************
+ * Table model of the connected clients for the ServerUI. Threads that change a client
+ * only mark it changed, which is cheap and safe from any thread. A Swing timer then applies
+ * the marked clients on the event dispatch thread at most once per FRAME_MILLIS: each one
+ * is inserted, updated or deleted against the client registry with an event for just its
+ * row. A connection storm therefore costs one table update per frame rather than a full
+ * rebuild of the table for every client that connects.
+ *
+ * Rows are kept in client id order and each row's cells are cached, so painting never
+ * calls back into the client.
+ ************************************************************************************/
+public class ClientTableModel extends AbstractTableModel
+{
+	private static final long serialVersionUID = 1L;
+	private static final int FRAME_MILLIS = 100;	//ten table updates a second at most
+
+	private String[] columns;
+	private ArrayList<Row> rowList;	//only used on the EDT
+	private transient Set<Client> changedClients;
+	private transient AtomicBoolean bFrameScheduled;
+	private transient Timer frameTimer;
+	private transient ActionListener frameListener;
+
+	ClientTableModel(String[] columns)
+	{
+		this.columns = columns;
+		rowList = new ArrayList<Row>();
+		changedClients = ConcurrentHashMap.<Client>newKeySet();
+		bFrameScheduled = new AtomicBoolean(false);
+
+		frameTimer = new Timer(FRAME_MILLIS, new ActionListener() {
+			public void actionPerformed(ActionEvent e)
+			{
+				applyChanges();
+			}
+		});
+		frameTimer.setRepeats(false);
+		frameListener = null;
+	}
+
+	/**
+	 * Called when a frame's changes have been applied, on the EDT.
+	 */
+	void setFrameListener(ActionListener listener) { frameListener = listener; }
+
+	/**
+	 * Marks a client as connected, disconnected or changed. Safe to call from any thread;
+	 * the table is updated at the next frame.
+	 */
+	void clientChanged(Client c)
+	{
+		changedClients.add(c);
+		if(bFrameScheduled.compareAndSet(false, true))
+			frameTimer.restart();
+	}
+
+	private void applyChanges()
+	{
+		bFrameScheduled.set(false);
+
+		ClientRegistry registry = ClientManager.getInstance().getClientRegistry();
+		for(Client c : changedClients)
+		{
+			changedClients.remove(c);
+
+			int index = findRow(c.getClientID());
+			boolean bConnected = registry.get(c.getClientID()) == c;
+			if(index >= 0 && rowList.get(index).client == c)
+			{
+				if(bConnected)
+				{
+					rowList.get(index).cells = c.getClientTableRow();
+					fireTableRowsUpdated(index, index);
+				}
+				else
+				{
+					rowList.remove(index);
+					fireTableRowsDeleted(index, index);
+				}
+			}
+			else if(bConnected)
+			{
+				int insertAt = -(index + 1);
+				rowList.add(insertAt, new Row(c));
+				fireTableRowsInserted(insertAt, insertAt);
+			}
+		}
+
+		if(frameListener != null)
+			frameListener.actionPerformed(new ActionEvent(this, ActionEvent.ACTION_PERFORMED, "frame"));
+	}
+
+	/**
+	 * Binary search of the rows by client id. Returns the row's index, or -(insertion
+	 * point) - 1 if there is no row for the id.
+	 */
+	private int findRow(int clientID)
+	{
+		int low = 0;
+		int high = rowList.size() - 1;
+		while(low <= high)
+		{
+			int mid = (low + high) >>> 1;
+			int midID = rowList.get(mid).client.getClientID();
+			if(midID < clientID)
+				low = mid + 1;
+			else if(midID > clientID)
+				high = mid - 1;
+			else
+				return mid;
+		}
+
+		return -(low + 1);
+	}
+
+	Client getClientAt(int row) { return rowList.get(row).client; }
+
+	@Override
+	public int getRowCount() { return rowList.size(); }
+
+	@Override
+	public int getColumnCount() { return columns.length; }
+
+	@Override
+	public String getColumnName(int column) { return columns[column]; }
+
+	@Override
+	public Object getValueAt(int row, int column) { return rowList.get(row).cells[column]; }
+
+	//All cells are locked from being changed by user
+	@Override
+	public boolean isCellEditable(int row, int column) { return false; }
+
+	private static class Row
+	{
+		private final Client client;
+		private String[] cells;
+
+		Row(Client client)
+		{
+			this.client = client;
+			cells = client.getClientTableRow();
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package homecontrolserver;
+
+import java.lang.reflect.Method;
+
+/*************************************************************************************
+ * Creates the threads that run blocking Client loops. By default each client gets a
+ * platform thread. With -Dhcs.client.threads=virtual each client runs on a virtual thread
+ * instead, keeping the blocking readLine/println code while parking only a small stack
+ * object per idle connection. Virtual threads are looked up reflectively so the server
+ * still builds and runs on JVMs without them, falling back to platform threads.
+ ************************************************************************************/
+public class ClientThreadFactory
+{
+	private boolean bVirtual;
+	private Object virtualBuilder;	//Thread.Builder.OfVirtual when virtual threads are in use
+	private Method unstartedMethod;
+	private String fallbackReason;
+
+	ClientThreadFactory(String mode)
+	{
+		bVirtual = false;
+		fallbackReason = null;
+
+		if(mode.equals(ServerConfig.CLIENT_THREADS_VIRTUAL))
+		{
+			try
+			{
+				Method ofVirtual = Thread.class.getMethod("ofVirtual");
+				virtualBuilder = ofVirtual.invoke(null);
+
+				Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+				unstartedMethod = builderClass.getMethod("unstarted", Runnable.class);
+				bVirtual = true;
+			}
+			catch (Exception e)
+			{
+				fallbackReason = String.format("Virtual threads not available on Java %s, using platform threads",
+												System.getProperty("java.version"));
+			}
+		}
+	}
+
+	boolean isVirtual() { return bVirtual; }
+
+	/**
+	 * Returns null unless virtual threads were requested but aren't supported by this JVM.
+	 */
+	String getFallbackReason() { return fallbackReason; }
+
+	String getModeName()
+	{
+		return bVirtual ? ServerConfig.CLIENT_THREADS_VIRTUAL : ServerConfig.CLIENT_THREADS_PLATFORM;
+	}
+
+	/**
+	 * Creates an unstarted thread that will run the client loop.
+	 */
+	Thread newThread(Runnable r, String name)
+	{
+		if(bVirtual)
+		{
+			try
+			{
+				Thread t = (Thread) unstartedMethod.invoke(virtualBuilder, r);
+				t.setName(name);
+				return t;
+			}
+			catch (Exception e)
+			{
+				//fall through and use a platform thread for this client
+			}
+		}
+
+		return new Thread(r, name);
+	}
+}
@@ -0,0 +1,200 @@
+package homecontrolserver;
+
+import homecontrolclient.GarageDoor;
+import homecontrolclient.Login;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import com.google.gson.Gson;
+
+/*************************************************************************************
+ * Microbenchmark of command parsing and dispatch, run with
+ *
+ *   java homecontrolserver.CommandDispatchBenchmark [iterations]
+ *
+ * For each command of the protocol it times the original startsWith chain, which copied
+ * the arguments with substring and built a new Gson for JSON commands, against the
+ * CommandDispatcher with the shared Gson. Handlers only parse their arguments, there is no
+ * socket or device I/O, so the numbers are the per-command parse and dispatch cost. Bytes
+ * allocated per command are reported where the JVM supports thread allocation counting.
+ ************************************************************************************/
+public class CommandDispatchBenchmark
+{
+	private static final int DEFAULT_ITERATIONS = 1000000;
+	private static final int WARMUP_ROUNDS = 3;
+
+	private static final String[] COMMANDS = {
+		"LOGIN_REQUEST{\"userID\":\"john\",\"password\":\"erin1992\",\"version\":\"benchmark\"}",
+		"GET<garage_door_status>",
+		"GET<garage_door_status><42>",
+		"GET<changes>",
+		"GET<changes><30000>",
+		"POST<garage_door_status{\"bLeftDoorOpen\":true,\"bRightDoorOpen\":false}",
+		"SUBSCRIBE",
+		"LOGOUT",
+		"NOT_A_COMMAND" };
+
+	private CommandDispatcher dispatcher;
+	private long sink;	//consumed results, so the JIT can't remove the work
+
+	CommandDispatchBenchmark()
+	{
+		dispatcher = new CommandDispatcher();
+		dispatcher.register("LOGIN_REQUEST", null, new CommandHandler() {
+			public void handleCommand(Client c, String line, int argStart)
+			{
+				Login lo = JsonCodec.getGson().fromJson(line.substring(argStart), Login.class);
+				sink += lo.getUserID().length();
+			}
+		});
+		dispatcher.register("GET", "garage_door_status", new CommandHandler() {
+			public void handleCommand(Client c, String line, int argStart)
+			{
+				sink += Client.parseNumberArgument(line, argStart);
+			}
+		});
+		dispatcher.register("GET", "changes", new CommandHandler() {
+			public void handleCommand(Client c, String line, int argStart)
+			{
+				sink += Client.parseNumberArgument(line, argStart);
+			}
+		});
+		dispatcher.register("POST", "garage_door_status", new CommandHandler() {
+			public void handleCommand(Client c, String line, int argStart)
+			{
+				GarageDoor gd = JsonCodec.getGson().fromJson(line.substring(argStart), GarageDoor.class);
+				sink += gd.isLeftDoorOpen() ? 1 : 0;
+			}
+		});
+		dispatcher.register("SUBSCRIBE", null, new CommandHandler() {
+			public void handleCommand(Client c, String line, int argStart) { sink++; }
+		});
+		dispatcher.register("UNSUBSCRIBE", null, new CommandHandler() {
+			public void handleCommand(Client c, String line, int argStart) { sink++; }
+		});
+		dispatcher.register("LOGOUT", null, new CommandHandler() {
+			public void handleCommand(Client c, String line, int argStart) { sink++; }
+		});
+	}
+
+	/**
+	 * The command handling as it was before the CommandDispatcher, doing the same argument
+	 * parsing as the handlers above.
+	 */
+	void legacyDispatch(String command)
+	{
+		if (command.startsWith("LOGIN_REQUEST"))
+		{
+			Gson gson = new Gson();
+			Login lo = gson.fromJson(command.substring(13), Login.class);
+			sink += lo.getUserID().length();
+		}
+		else if(command.startsWith("GET<garage_door_status>"))
+			sink += legacyParseNumber(command.substring(23));
+		else if(command.startsWith("GET<changes>"))
+			sink += legacyParseNumber(command.substring(12));
+		else if(command.startsWith("POST<garage_door_status"))
+		{
+			Gson gson = new Gson();
+			GarageDoor gd = gson.fromJson(command.substring(23), GarageDoor.class);
+			sink += gd.isLeftDoorOpen() ? 1 : 0;
+		}
+		else if(command.startsWith("SUBSCRIBE"))
+			sink++;
+		else if(command.startsWith("UNSUBSCRIBE"))
+			sink++;
+		else if (command.startsWith("LOGOUT"))
+			sink++;
+		else
+			sink += ("UNRECOGNIZED_COMMAND" + command).length();
+	}
+
+	private static long legacyParseNumber(String args)
+	{
+		if(args.length() < 3 || args.charAt(0) != '<' || args.charAt(args.length()-1) != '>')
+			return -1;
+
+		try
+		{
+			return Long.parseLong(args.substring(1, args.length()-1));
+		}
+		catch (NumberFormatException nfe)
+		{
+			return -1;
+		}
+	}
+
+	void dispatch(String command)
+	{
+		if(!dispatcher.dispatch(null, command))
+			sink += ("UNRECOGNIZED_COMMAND" + command).length();
+	}
+
+	/**
+	 * Runs one command n times, returning nanoseconds and bytes allocated per command.
+	 */
+	double[] measure(String command, int n, boolean bLegacy)
+	{
+		ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+		long bytesBefore = allocatedBytes(mx);
+		long start = System.nanoTime();
+
+		if(bLegacy)
+			for(int i = 0; i < n; i++)
+				legacyDispatch(command);
+		else
+			for(int i = 0; i < n; i++)
+				dispatch(command);
+
+		long nanos = System.nanoTime() - start;
+		long bytes = allocatedBytes(mx) - bytesBefore;
+		return new double[] { (double) nanos / n, bytesBefore < 0 ? -1 : (double) bytes / n };
+	}
+
+	private static long allocatedBytes(ThreadMXBean mx)
+	{
+		if(mx instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean) mx).getThreadAllocatedBytes(Thread.currentThread().getId());
+		return -1;
+	}
+
+	/**
+	 * JSON commands are far slower than the rest, so they are run fewer times.
+	 */
+	private static int iterationsFor(String command, int iterations)
+	{
+		return command.indexOf('{') >= 0 ? Math.max(1, iterations / 20) : iterations;
+	}
+
+	void run(int iterations)
+	{
+		for(int round = 0; round < WARMUP_ROUNDS; round++)
+			for(String command : COMMANDS)
+			{
+				measure(command, iterationsFor(command, iterations) / 10, true);
+				measure(command, iterationsFor(command, iterations) / 10, false);
+			}
+
+		System.out.println(String.format("%-30s %12s %12s %12s %12s", "Command", "before ns", "after ns",
+											"before B", "after B"));
+		for(String command : COMMANDS)
+		{
+			int n = iterationsFor(command, iterations);
+			double[] before = measure(command, n, true);
+			double[] after = measure(command, n, false);
+
+			String name = command.length() > 30 ? command.substring(0, 27) + "..." : command;
+			System.out.println(String.format("%-30s %12.1f %12.1f %12.1f %12.1f", name,
+												before[0], after[0], before[1], after[1]));
+		}
+
+		System.out.println("(" + sink + ")");
+	}
+
+	public static void main(String[] args)
+	{
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ITERATIONS;
+		new CommandDispatchBenchmark().run(iterations);
+	}
+}
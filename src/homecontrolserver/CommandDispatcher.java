@@ -0,0 +1,139 @@
+package homecontrolserver;
+
+/*************************************************************************************
+ * Registry of the commands the server understands and the handler for each. Commands have
+ * the form
+ *
+ *   VERB[<resource>][arguments]
+ *
+ * for example LOGOUT, LOGIN_REQUEST{json}, GET<changes><waitMillis> or
+ * POST<garage_door_status{json}. The verb is a run of capital letters and underscores; a
+ * resource token, if any, follows in angle brackets and ends at '>' or at the '{' that
+ * starts a JSON argument.
+ *
+ * Commands are kept in buckets by their first character. dispatch() compares the line in
+ * place against each command in the line's bucket, checks the character after the match
+ * ends the verb or resource token, and passes the handler the index where the arguments
+ * start, so a command is dispatched without copying the line or allocating. Adding a
+ * command is one call to register().
+ *
+ * Each command's response time, up to when its response is ready to send, is recorded in
+ * the command's ServerMetrics histogram.
+ *
+ * Registration isn't thread safe; register every command before dispatching.
+ ************************************************************************************/
+public class CommandDispatcher
+{
+	private static final int BUCKETS = 128;	//commands start with an ASCII capital letter
+
+	private Registration[][] buckets;
+
+	CommandDispatcher()
+	{
+		buckets = new Registration[BUCKETS][];
+	}
+
+	/**
+	 * Registers the handler for a verb and resource. Use a null resource for commands
+	 * without one, such as LOGOUT.
+	 */
+	void register(String verb, String resource, CommandHandler handler)
+	{
+		Registration r = new Registration(verb, resource, handler);
+		int b = verb.charAt(0) % BUCKETS;
+
+		Registration[] bucket = buckets[b];
+		if(bucket == null)
+			bucket = new Registration[0];
+
+		Registration[] grown = new Registration[bucket.length + 1];
+		System.arraycopy(bucket, 0, grown, 0, bucket.length);
+		grown[bucket.length] = r;
+		buckets[b] = grown;
+	}
+
+	/**
+	 * Parses the line and calls the registered handler. Returns false if no command is
+	 * registered for the line's verb and resource.
+	 */
+	boolean dispatch(Client client, String line)
+	{
+		if(line.isEmpty())
+			return false;
+
+		Registration[] bucket = buckets[line.charAt(0) % BUCKETS];
+		if(bucket == null)
+			return false;
+
+		for(Registration r : bucket)
+		{
+			int argStart = r.match(line);
+			if(argStart >= 0)
+			{
+				long start = System.nanoTime();
+				try
+				{
+					r.handler.handleCommand(client, line, argStart);
+				}
+				catch (RuntimeException e)
+				{
+					r.timer.recordError();
+					throw e;
+				}
+				if(client != null)
+					client.recordResponseTime(r.timer, start);
+				else
+					r.timer.recordSince(start);	//dispatched without a client, as the benchmark does
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	private static boolean isVerbChar(char c)
+	{
+		return c >= 'A' && c <= 'Z' || c == '_';
+	}
+
+	private static class Registration
+	{
+		private final String prefix;	//VERB, or VERB<resource without the closing '>'
+		private final boolean bHasResource;
+		private final CommandHandler handler;
+		private final LatencyHistogram timer;
+
+		Registration(String verb, String resource, CommandHandler handler)
+		{
+			prefix = resource == null ? verb : verb + "<" + resource;
+			bHasResource = resource != null;
+			this.handler = handler;
+			timer = ServerMetrics.getInstance().getCommandTimer(bHasResource ? prefix + ">" : prefix);
+		}
+
+		/**
+		 * Returns the index of the line's arguments if the line is this command, otherwise -1.
+		 */
+		int match(String line)
+		{
+			if(!line.startsWith(prefix))
+				return -1;
+
+			int end = prefix.length();
+			if(end == line.length())
+				return end;
+
+			char c = line.charAt(end);
+			if(bHasResource)
+			{
+				//the resource token ends at '>', or at the '{' of a JSON argument
+				if(c == '>')
+					return end + 1;
+				return c == '{' ? end : -1;
+			}
+
+			//the verb must end here, not be the start of a longer verb or have a resource
+			return isVerbChar(c) || c == '<' ? -1 : end;
+		}
+	}
+}
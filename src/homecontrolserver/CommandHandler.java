@@ -0,0 +1,12 @@
+package homecontrolserver;
+
+/*************************************************************************************
+ * Handles one command registered with a CommandDispatcher. The handler is given the whole
+ * command line and the index where the command's arguments start, just past the verb and
+ * <resource> token, so dispatching doesn't copy the line. A handler that needs its
+ * arguments as a String, such as a JSON payload, takes the substring itself.
+ ************************************************************************************/
+public interface CommandHandler
+{
+	void handleCommand(Client client, String line, int argStart);
+}
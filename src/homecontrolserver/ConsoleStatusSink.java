@@ -0,0 +1,134 @@
+package homecontrolserver;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/*************************************************************************************
+ * Status sink for headless operation. Log messages, errors and changes in client count or
+ * door status are written as timestamped lines to standard out, where a service manager
+ * such as systemd can capture them.
+ *
+ * Threads that log only add the line to a LogRingBuffer; a background writer drains it to
+ * standard out every FLUSH_INTERVAL, so client threads never wait on stdout or on each
+ * other. close() writes what is left.
+ ************************************************************************************/
+public class ConsoleStatusSink implements ServerStatusSink
+{
+	private static final String[] STOPLIGHT_NAMES = {"closed", "moving", "open", "unknown"};
+	private static final int LOG_BUFFER_CAPACITY = 4096;
+	private static final long FLUSH_INTERVAL = 100;	//milliseconds
+	private static final long CLOSE_TIMEOUT = 2000;
+
+	private PrintStream out;
+	private TimestampCache timestampCache;
+	private LogRingBuffer logBuffer;
+	private long droppedReported;	//writer thread only
+	private AtomicInteger lastClientCount;
+	private AtomicIntegerArray lastStoplight;
+	private volatile boolean bClosed;
+	private Thread writerThread;
+
+	ConsoleStatusSink(PrintStream out)
+	{
+		this.out = out;
+		timestampCache = new TimestampCache("MM/dd/yy H:mm:ss");
+		logBuffer = new LogRingBuffer(LOG_BUFFER_CAPACITY);
+		droppedReported = 0;
+		lastClientCount = new AtomicInteger(0);
+		lastStoplight = new AtomicIntegerArray(new int[] {-1, -1});
+		bClosed = false;
+
+		writerThread = new Thread(new Runnable() {
+			public void run() { writeLoop(); }
+		}, "ConsoleLog");
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	@Override
+	public void addLogMessage(String mssg)
+	{
+		String line = timestampCache.format(System.currentTimeMillis()) + ": " + mssg;
+		if(bClosed)
+			out.println(line);	//shutting down, nothing left to batch with
+		else
+			logBuffer.add(line + System.lineSeparator());
+	}
+
+	@Override
+	public void clientChanged(Client c, int clientCount)
+	{
+		if(lastClientCount.getAndSet(clientCount) != clientCount)
+			addLogMessage("Clients Connected: " + Integer.toString(clientCount));
+	}
+
+	@Override
+	public void setStoplight(int door, int pos)
+	{
+		if(pos >= 0 && pos < 4 && (door == 0 || door == 1) && lastStoplight.getAndSet(door, pos) != pos)
+			addLogMessage(String.format("%s door %s", door == 0 ? "Left" : "Right", STOPLIGHT_NAMES[pos]));
+	}
+
+	/**
+	 * Writes the lines still buffered, waiting up to CLOSE_TIMEOUT. Lines logged afterwards
+	 * are written directly.
+	 */
+	void close()
+	{
+		if(bClosed)
+			return;
+
+		bClosed = true;
+		writerThread.interrupt();
+		try
+		{
+			writerThread.join(CLOSE_TIMEOUT);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void writeLoop()
+	{
+		StringBuilder batch = new StringBuilder();
+		while(!bClosed)
+		{
+			try
+			{
+				Thread.sleep(FLUSH_INTERVAL);
+			}
+			catch (InterruptedException e)
+			{
+				break;	//closing
+			}
+			writeBatch(batch);
+		}
+
+		writeBatch(batch);
+	}
+
+	private void writeBatch(StringBuilder batch)
+	{
+		batch.setLength(0);
+		int count = logBuffer.drainTo(batch);
+
+		long dropped = logBuffer.getDroppedCount();
+		if(dropped != droppedReported)
+		{
+			batch.append(timestampCache.format(System.currentTimeMillis()))
+				.append(String.format(": Console log backlog full, %d messages dropped", dropped - droppedReported))
+				.append(System.lineSeparator());
+			droppedReported = dropped;
+			count++;
+		}
+
+		if(count > 0)
+		{
+			out.print(batch);
+			out.flush();
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package homecontrolserver;
+
+/*************************************************************************************
+ * Immutable snapshot of both garage doors. GarageDoorDB publishes a new snapshot after each
+ * poll, so readers always see the two doors from the same poll and never a half updated
+ * state. Each published snapshot carries a version, incremented when either door changes,
+ * and the STATUS_GARAGE_DOOR response lines and binary STATUS frame are rendered once when
+ * the snapshot is made rather than on every client request.
+ ************************************************************************************/
+public class DoorStatus
+{
+	private final boolean bLeftDoorOpen;
+	private final boolean bRightDoorOpen;
+	private final long timestamp;	//when the status was read from the Yun
+	private final long version;		//0 until the status has been published
+	private final String statusLine;
+	private final String versionedStatusLine;
+	private final byte[] statusFrame;
+	
+	DoorStatus(boolean bLeftDoorOpen, boolean bRightDoorOpen, long timestamp)
+	{
+		this(bLeftDoorOpen, bRightDoorOpen, timestamp, 0);
+	}
+	
+	DoorStatus(boolean bLeftDoorOpen, boolean bRightDoorOpen, long timestamp, long version)
+	{
+		this.bLeftDoorOpen = bLeftDoorOpen;
+		this.bRightDoorOpen = bRightDoorOpen;
+		this.timestamp = timestamp;
+		this.version = version;
+		
+		statusLine = String.format("STATUS_GARAGE_DOOR{\"bLeftDoorOpen\":%s,\"bRightDoorOpen\":%s}",
+									bLeftDoorOpen, bRightDoorOpen);
+		versionedStatusLine = String.format("STATUS_GARAGE_DOOR{\"bLeftDoorOpen\":%s,\"bRightDoorOpen\":%s,\"version\":%d}",
+									bLeftDoorOpen, bRightDoorOpen, version);
+		statusFrame = BinaryProtocol.encodeStatus(bLeftDoorOpen, bRightDoorOpen, version);
+	}
+	
+	/**
+	 * Returns a copy of this status with the given version, for publishing.
+	 */
+	DoorStatus withVersion(long version)
+	{
+		return new DoorStatus(bLeftDoorOpen, bRightDoorOpen, timestamp, version);
+	}
+	
+	boolean isLeftDoorOpen() { return bLeftDoorOpen; }
+	boolean isRightDoorOpen() { return bRightDoorOpen; }
+	boolean isDoorOpen(GarageDoorDB.Door door) { return door == GarageDoorDB.Door.LEFT ? bLeftDoorOpen : bRightDoorOpen; }
+	long getTimestamp() { return timestamp; }
+	long getVersion() { return version; }
+	
+	/**
+	 * The response to GET<garage_door_status>, unchanged from the original protocol.
+	 */
+	String getStatusLine() { return statusLine; }
+	
+	/**
+	 * The response to a conditional GET<garage_door_status><version>. It adds the version for
+	 * the client to send back; clients that parse the JSON into a GarageDoor ignore it.
+	 */
+	String getVersionedStatusLine() { return versionedStatusLine; }
+	
+	/**
+	 * The BinaryProtocol STATUS frame for this status. Callers must not modify it.
+	 */
+	byte[] getStatusFrame() { return statusFrame; }
+	
+	boolean sameDoorsAs(DoorStatus other)
+	{
+		return other != null && bLeftDoorOpen == other.bLeftDoorOpen && bRightDoorOpen == other.bRightDoorOpen;
+	}
+}
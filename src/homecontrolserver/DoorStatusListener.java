@@ -0,0 +1,11 @@
+package homecontrolserver;
+
+/*************************************************************************************
+ * Notified by GarageDoorDB each time a poll publishes a new door status, that is when a
+ * door has opened or closed. Called on the thread that completed the poll, so listeners
+ * must hand any slow work, such as writing to a socket, to another thread.
+ ************************************************************************************/
+public interface DoorStatusListener
+{
+	void doorStatusChanged(DoorStatus status);
+}
@@ -0,0 +1,267 @@
+package homecontrolserver;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*************************************************************************************
+ * Writes the server log to a file without holding up the threads that log. log() only
+ * offers the message to a bounded queue; a background writer thread takes the messages in
+ * batches, writes them and flushes once per batch, so a slow disk delays the file and
+ * never a client request. If the queue is full the message is dropped and counted, and
+ * the writer notes how many were dropped in the file.
+ *
+ * The file is rotated when it reaches the size limit or at the rotation period boundary,
+ * daily or hourly. The rotated file is renamed with the time of the rotation and only the
+ * newest rotated files are kept.
+ ************************************************************************************/
+public class FileLogger
+{
+	enum RotationPeriod { DAILY, HOURLY, NONE }
+
+	private static final int QUEUE_CAPACITY = 8192;
+	private static final int BATCH_SIZE = 512;
+	private static final long CLOSE_TIMEOUT = 2000;	//longest close() waits for the backlog to be written
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+
+	private File logFile;
+	private long maxBytes;
+	private int maxFiles;
+	private RotationPeriod period;
+
+	private BlockingQueue<Record> queue;
+	private AtomicLong droppedCount;
+	private long droppedReported;	//writer thread only
+	private TimestampCache timestampCache;
+	private Writer writer;	//writer thread only
+	private long fileBytes;
+	private long nextRotation;
+	private volatile boolean bClosed;
+	private Thread writerThread;
+
+	FileLogger(File logFile, long maxBytes, int maxFiles, RotationPeriod period)
+	{
+		this.logFile = logFile;
+		this.maxBytes = maxBytes;
+		this.maxFiles = maxFiles;
+		this.period = period;
+
+		queue = new ArrayBlockingQueue<Record>(QUEUE_CAPACITY);
+		droppedCount = new AtomicLong(0);
+		droppedReported = 0;
+		timestampCache = new TimestampCache("yyyy-MM-dd HH:mm:ss");
+		writer = null;
+		bClosed = false;
+
+		writerThread = new Thread(new Runnable() {
+			public void run() { writeLoop(); }
+		}, "FileLogger");
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	/**
+	 * Queues a message for the file. Never blocks; if the backlog is full the message is
+	 * dropped.
+	 */
+	void log(String mssg)
+	{
+		if(bClosed || !queue.offer(new Record(System.currentTimeMillis(), mssg)))
+			droppedCount.incrementAndGet();
+	}
+
+	long getDroppedCount() { return droppedCount.get(); }
+	int getBacklog() { return queue.size(); }
+	File getLogFile() { return logFile; }
+
+	/**
+	 * Writes the backlog, waiting up to CLOSE_TIMEOUT, and closes the file. Messages logged
+	 * after close are dropped.
+	 */
+	void close()
+	{
+		if(bClosed)
+			return;
+
+		bClosed = true;
+		writerThread.interrupt();
+		try
+		{
+			writerThread.join(CLOSE_TIMEOUT);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void writeLoop()
+	{
+		List<Record> batch = new ArrayList<Record>(BATCH_SIZE);
+		while(!bClosed || !queue.isEmpty())
+		{
+			try
+			{
+				Record first = queue.poll(1, TimeUnit.SECONDS);
+				if(first == null)
+					continue;
+
+				batch.add(first);
+				queue.drainTo(batch, BATCH_SIZE - 1);
+			}
+			catch (InterruptedException e)
+			{
+				queue.drainTo(batch);	//closing, write what's left
+			}
+
+			writeBatch(batch);
+			batch.clear();
+		}
+
+		closeFile();
+	}
+
+	private void writeBatch(List<Record> batch)
+	{
+		try
+		{
+			long dropped = droppedCount.get();
+			if(dropped != droppedReported)
+			{
+				writeLine(System.currentTimeMillis(), String.format("File log backlog full, %d messages dropped",
+																	dropped - droppedReported));
+				droppedReported = dropped;
+			}
+
+			for(Record r : batch)
+				writeLine(r.time, r.mssg);
+
+			if(writer != null)
+				writer.flush();
+		}
+		catch (IOException e)
+		{
+			//the disk may come back, start a new file with the next batch
+			System.err.println("FileLogger: " + e.getMessage());
+			closeFile();
+		}
+	}
+
+	private void writeLine(long time, String mssg) throws IOException
+	{
+		if(writer == null || fileBytes >= maxBytes || time >= nextRotation)
+			rotate(time);
+
+		String line = timestampCache.format(time) + ": " + mssg + System.lineSeparator();
+		writer.write(line);
+		fileBytes += line.length();	//close enough for the size limit, lines are mostly ASCII
+	}
+
+	/**
+	 * Renames the current file, if there is one and it needs rotating, and opens a new one.
+	 */
+	private void rotate(long time) throws IOException
+	{
+		closeFile();
+
+		//also rotates a file left over from before a restart if its period has ended
+		boolean bDue = logFile.length() >= maxBytes || nextRotationTime(logFile.lastModified()) <= time;
+		if(logFile.exists() && bDue)
+		{
+			String suffix = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date(time));
+			File rotated = new File(logFile.getPath() + "." + suffix);
+			for(int n = 1; rotated.exists(); n++)
+				rotated = new File(logFile.getPath() + "." + suffix + "-" + n);
+			if(logFile.renameTo(rotated))
+				deleteOldFiles();
+		}
+
+		File dir = logFile.getAbsoluteFile().getParentFile();
+		if(dir != null && !dir.exists())
+			dir.mkdirs();
+
+		writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(logFile, true), CHARSET));
+		fileBytes = logFile.length();
+		nextRotation = nextRotationTime(time);
+	}
+
+	private void deleteOldFiles()
+	{
+		File dir = logFile.getAbsoluteFile().getParentFile();
+		final String prefix = logFile.getName() + ".";
+		File[] rotated = dir == null ? null : dir.listFiles(new FileFilter() {
+			public boolean accept(File f) { return f.getName().startsWith(prefix); }
+		});
+		if(rotated == null || rotated.length <= maxFiles)
+			return;
+
+		//the names sort by rotation time, oldest first
+		Arrays.sort(rotated);
+		for(int i = 0; i < rotated.length - maxFiles; i++)
+			rotated[i].delete();
+	}
+
+	private long nextRotationTime(long time)
+	{
+		if(period == RotationPeriod.NONE)
+			return Long.MAX_VALUE;
+
+		Calendar cal = Calendar.getInstance();
+		cal.setTimeInMillis(time);
+		cal.set(Calendar.MINUTE, 0);
+		cal.set(Calendar.SECOND, 0);
+		cal.set(Calendar.MILLISECOND, 0);
+		if(period == RotationPeriod.DAILY)
+		{
+			cal.set(Calendar.HOUR_OF_DAY, 0);
+			cal.add(Calendar.DAY_OF_MONTH, 1);
+		}
+		else
+			cal.add(Calendar.HOUR_OF_DAY, 1);
+
+		return cal.getTimeInMillis();
+	}
+
+	private void closeFile()
+	{
+		if(writer == null)
+			return;
+
+		try
+		{
+			writer.close();
+		}
+		catch (IOException e)
+		{
+			System.err.println("FileLogger: " + e.getMessage());
+		}
+		writer = null;
+	}
+
+	private static class Record
+	{
+		private final long time;
+		private final String mssg;
+
+		Record(long time, String mssg)
+		{
+			this.time = time;
+			this.mssg = mssg;
+		}
+	}
+}
@@ -1,274 +1,616 @@
 package homecontrolserver;
 
-import homecontrolclient.GarageDoor;
-
-import java.awt.event.ActionEvent;
-import java.awt.event.ActionListener;
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URL;
-
-import javax.swing.JOptionPane;
-import javax.swing.Timer;
-
-import com.google.gson.Gson;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
-
-public class GarageDoorDB implements ActionListener
+public class GarageDoorDB implements GarageDoorDBMXBean
 {
-	//Takes garage door 10 seconds to open/close. Nyquist
-	private static final int STATUS_POLLING_RATE = 1000 * 5;	
-	private static final boolean YUN_CONNECTED = true;
-	
+	//Takes garage door 10 seconds to open/close. The door is polled quickly while it's moving,
+	//at the status rate after any change, slowing toward the idle rate while nothing changes,
+	//and backing off exponentially while the Yun is unreachable
+	private static final int STATUS_POLLING_RATE = 1000 * 5;
+	private static final int FAST_POLLING_RATE = 500;
+	private static final int IDLE_POLLING_RATE = 1000 * 30;
+	private static final double IDLE_DECAY_FACTOR = 1.5;
+	private static final int MAX_BACKOFF_POLLING_RATE = 1000 * 60;
+	private static final int TRANSITION_TIMEOUT = 1000 * 15;	//longest a toggle keeps fast polling
+	private static final int TRANSITION_SETTLE_POLLS = 2;	//unchanged polls after a change to settle
+
 	private static GarageDoorDB instance = null;
-	private String leftDoorOpen, rightDoorOpen;
-	private Timer doorStatusTimer;
+	private AtomicReference<DoorStatus> doorStatus;	//both doors from the latest poll
+	private AtomicBoolean bPollInProgress;
 	
+	//adaptive polling state, guarded by pollScheduleLock
+	private ReentrantLock pollScheduleLock;
+	private ScheduledFuture<?> nextPoll;
+	private volatile long currentPollingRate;
+	private long transitionDeadline;	//0 when no door is moving
+	private DoorStatus transitionStartStatus;
+	private int settledPolls;
+	private int consecutiveFailures;
+	private AtomicLong pollCount, fastPollCount, failedPollCount;
+
+	//Yun round trip times; a poll's time includes waiting behind a toggle
+	private LatencyHistogram readTimer, toggleTimer, pollTimer;
+	private LongAdder rejectedCount;
+
+	private YunBridge yunBridge;
+
+	//Yun operations are chained so a poll never interleaves with a toggle and toggles from
+	//concurrent clients run one at a time. The lock only guards swapping the tail of the
+	//chain, nothing blocks while holding it.
+	private CompletableFuture<?> deviceOperationTail;
+	private ReentrantLock deviceOperationLock;
+
+	private ServerStatusSink statusSink;
+	private List<DoorStatusListener> listenerList;	//told about each new door status
+
 	private GarageDoorDB()
 	{
-		//initialize door status
-		if(YUN_CONNECTED)
+		deviceOperationTail = CompletableFuture.completedFuture(null);
+		deviceOperationLock = new ReentrantLock();
+		bPollInProgress = new AtomicBoolean(false);
+		pollScheduleLock = new ReentrantLock();
+		nextPoll = null;
+		currentPollingRate = STATUS_POLLING_RATE;
+		transitionDeadline = 0;
+		settledPolls = 0;
+		consecutiveFailures = 0;
+		pollCount = new AtomicLong(0);
+		fastPollCount = new AtomicLong(0);
+		failedPollCount = new AtomicLong(0);
+		ServerMetrics metrics = ServerMetrics.getInstance();
+		readTimer = metrics.getDeviceTimer("read");
+		toggleTimer = metrics.getDeviceTimer("toggle");
+		pollTimer = metrics.getDeviceTimer("poll");
+		rejectedCount = metrics.getCounter(ServerMetrics.YUN_REJECTED);
+		statusSink = ClientManager.getStatusSink();
+		listenerList = new CopyOnWriteArrayList<DoorStatusListener>();
+		doorStatus = new AtomicReference<DoorStatus>(new DoorStatus(false, false, 0));
+		yunBridge = new YunBridge(getYunUrl());
+
+		//initialize door status, waiting for the first poll so the status is known at start up
+		pollDoorStatus().join();
+
+		//Poll the door status on the server scheduler, off the UI thread
+		scheduleNextPoll(STATUS_POLLING_RATE);
+	}
+
+	/**
+	 * Returns the bridge URL to use, starting the Yun simulator first if it is configured.
+	 */
+	private String getYunUrl()
+	{
+		if(!ServerConfig.isYunSimulated())
+			return ServerConfig.getYunUrl();
+
+		YunSimulator simulator = YunSimulator.getInstance();
+		try
 		{
-			getDoorStatusFromYun(Door.LEFT);
-			getDoorStatusFromYun(Door.RIGHT);
+			simulator.start(ServerConfig.getYunSimPort());
+			statusSink.addLogMessage("Using Yun simulator at " + simulator.getBaseUrl());
+			return simulator.getBaseUrl();
 		}
-		else
+		catch (IOException e)
 		{
-			leftDoorOpen = "false";
-			rightDoorOpen = "false";
+			statusSink.addLogMessage("Yun simulator failed to start, using the Yun: " + e.getMessage());
+			return ServerConfig.getYunUrl();
 		}
-		
-		//set the stoplight status
-		if(leftDoorOpen.equals("true"))
-			ServerUI.setStoplight(0, 2);
-		else
-			ServerUI.setStoplight(0, 0);
-		
-		if(rightDoorOpen.equals("true"))
-			ServerUI.setStoplight(1, 2);
-		else
-			ServerUI.setStoplight(1, 0);
-		
-		//Create the polling timer
-    	doorStatusTimer = new Timer(STATUS_POLLING_RATE, this);
-    	doorStatusTimer.start();
 	}
-	
+
 	public static GarageDoorDB getInstance()
 	{
 		if(instance == null)
+		{
 			instance = new GarageDoorDB();
+			ServerMBeans.register("GarageDoorDB", instance);
+		}
 
 		return instance;
 	}
-	
-	void getDoorStatusFromYun(Door door)
+
+	/**
+	 * Reads both doors from the Yun and completes with a snapshot of the two. The doors are
+	 * read concurrently, or with one batched request if the sketch supports it, so a read
+	 * takes about one round trip. While the circuit breaker isn't closed it admits a single
+	 * trial request, so without the batch command the doors are read one after the other and
+	 * the right door only if the left door's read got through. Completes with null if the Yun
+	 * couldn't be reached.
+	 */
+	CompletableFuture<DoorStatus> readDoorStatusFromYun()
 	{
-		String stringURL = null;
-		String response = null;
+		final DoorStatus previous = doorStatus.get();
+		String batchCommand = ServerConfig.getYunBatchReadCommand();
 		
-		if(door == Door.LEFT)
+		if(batchCommand != null)
 		{
-			stringURL = String.format("http://arduino.local/arduino/readL");
-			response = sendCommandToYun(stringURL);
-			
-			if(response != null && response.equals("Pin D2 value is 1"))
-			{
-				//left door is open
-				leftDoorOpen = "true";
-			}
-			else if(response != null && response.equals("Pin D2 value is 0"))
-			{
-				//left door is closed
-				leftDoorOpen = "false";
-			}
-			else
-			{
-				//ERROR OCCURRED
-			}
+			return sendCommandToYun(batchCommand).thenApply(new Function<String, DoorStatus>() {
+				public DoorStatus apply(String response)
+				{
+					if(response == null)
+						return null;
+					
+					return new DoorStatus(parseDoorPin(response, "Pin D2 value is ", previous.isLeftDoorOpen()),
+										  parseDoorPin(response, "Pin D3 value is ", previous.isRightDoorOpen()),
+										  System.currentTimeMillis());
+				}
+			});
 		}
-		else
+		
+		if(yunBridge.getCircuitBreaker().getState() != CircuitBreaker.State.CLOSED)
 		{
-			stringURL = String.format("http://arduino.local/arduino/readR");
-			response = sendCommandToYun(stringURL);
-			
-			if(response != null && response.equals("Pin D3 value is 1"))
-			{
-				//right door is open
-				rightDoorOpen = "true";
-			}
-			else if(response != null && response.equals("Pin D3 value is 0"))
-			{
-				//right door is closed
-				rightDoorOpen = "false";
-			}
-			else
+			return sendCommandToYun("readL").thenCompose(new Function<String, CompletionStage<DoorStatus>>() {
+				public CompletionStage<DoorStatus> apply(final String leftResponse)
+				{
+					if(leftResponse == null)
+						return CompletableFuture.completedFuture(null);
+					
+					return sendCommandToYun("readR").thenApply(new Function<String, DoorStatus>() {
+						public DoorStatus apply(String rightResponse)
+						{
+							return toDoorStatus(leftResponse, rightResponse, previous);
+						}
+					});
+				}
+			});
+		}
+		
+		CompletableFuture<String> leftRead = sendCommandToYun("readL");
+		CompletableFuture<String> rightRead = sendCommandToYun("readR");
+		
+		return leftRead.thenCombine(rightRead, new BiFunction<String, String, DoorStatus>() {
+			public DoorStatus apply(String leftResponse, String rightResponse)
 			{
-				//ERROR OCCURRED
+				return toDoorStatus(leftResponse, rightResponse, previous);
 			}
-		}
+		});
+	}
+	
+	/**
+	 * Builds the door status from the readL and readR responses, null if either failed.
+	 */
+	private static DoorStatus toDoorStatus(String leftResponse, String rightResponse, DoorStatus previous)
+	{
+		if(leftResponse == null || rightResponse == null)
+			return null;
+		
+		return new DoorStatus(parseDoorPin(leftResponse, "Pin D2 value is ", previous.isLeftDoorOpen()),
+							  parseDoorPin(rightResponse, "Pin D3 value is ", previous.isRightDoorOpen()),
+							  System.currentTimeMillis());
 	}
 	
-	String toggleGarageDoorUsingYun(Door door)
+	/**
+	 * Finds "Pin Dn value is 1" (open) or "Pin Dn value is 0" (closed) in a bridge response.
+	 * Returns bPrevious if the response is missing or doesn't contain the pin.
+	 */
+	static boolean parseDoorPin(String response, String pinPrefix, boolean bPrevious)
 	{
-		//form the String url request
-		String stringURL;
+		if(response == null)
+			return bPrevious;	//ERROR OCCURRED
+		
+		int index = response.indexOf(pinPrefix);
+		if(index < 0 || index + pinPrefix.length() >= response.length())
+			return bPrevious;	//ERROR OCCURRED
+		
+		char value = response.charAt(index + pinPrefix.length());
+		if(value == '1')
+			return true;	//door is open
+		else if(value == '0')
+			return false;	//door is closed
+		else
+			return bPrevious;	//ERROR OCCURRED
+	}
+	
+	CompletableFuture<String> toggleGarageDoorUsingYun(final Door door)
+	{
+		//form the bridge command
+		final String command;
 		if(door == Door.LEFT)
-			stringURL = "http://arduino.local/arduino/toggleL";	//
+			command = "toggleL";
 		else
-			stringURL = "http://arduino.local/arduino/toggleR";
+			command = "toggleR";
 		
-		String response = sendCommandToYun(stringURL);
+		startTransition();
 		
-		//if operation was successful, notify the client. It's the clients responsibility to check the status to 
-		//see if the operation actually changed the door.
-		if(response != null && door == Door.LEFT && response.equals("Pin D11 value is 0") ||
-			door == Door.RIGHT && response.equals("Pin D12 value is 0"))
-			return "UPDATED_GARAGE_DOOR";
-		else
-			return "UPDATE_GARAGE_DOOR_FAILED";	
+		final long start = System.nanoTime();
+		return yunBridge.sendCommand(command).handle(new BiFunction<String, Throwable, String>() {
+			public String apply(String response, Throwable t)
+			{
+				if(t != null)
+				{
+					Throwable cause = t.getCause() != null ? t.getCause() : t;
+					if(cause instanceof CircuitBreaker.CircuitOpenException)
+					{
+						rejectedCount.increment();
+						return deviceUnavailableResponse(((CircuitBreaker.CircuitOpenException) cause).getRetryAfter());
+					}
+					
+					toggleTimer.recordError();
+					toggleTimer.recordSince(start);
+					statusSink.addLogMessage(String.format("Arduino Issue: %s failed, %s", command, cause.toString()));
+					return "UPDATE_GARAGE_DOOR_FAILED";
+				}
+				toggleTimer.recordSince(start);
+				
+				//if operation was successful, notify the client. It's the clients responsibility to check the status to
+				//see if the operation actually changed the door.
+				if(response != null && door == Door.LEFT && response.equals("Pin D11 value is 0") ||
+					response != null && door == Door.RIGHT && response.equals("Pin D12 value is 0"))
+					return "UPDATED_GARAGE_DOOR";
+				else
+					return "UPDATE_GARAGE_DOOR_FAILED";
+			}
+		});
+	}
+
+	/**
+	 * Sends a command to the Yun bridge. Completes with the response body, or with null if the
+	 * Yun couldn't be reached. Failures are logged unless the circuit breaker rejected the
+	 * request, which it logs once when it opens.
+	 */
+	CompletableFuture<String> sendCommandToYun(final String command)
+	{
+		final long start = System.nanoTime();
+		return yunBridge.sendCommand(command).handle(new BiFunction<String, Throwable, String>() {
+			public String apply(String response, Throwable t)
+			{
+				if(t != null)
+				{
+					Throwable cause = t.getCause() != null ? t.getCause() : t;
+					if(!(cause instanceof CircuitBreaker.CircuitOpenException))
+					{
+						readTimer.recordError();
+						readTimer.recordSince(start);
+						statusSink.addLogMessage(String.format("Arduino Issue: %s failed, %s", command, cause.toString()));
+					}
+					return null;
+				}
+				readTimer.recordSince(start);
+				return response;
+			}
+		});
 	}
 	
-	String sendCommandToYun(String stringURL)
+	/**
+	 * Response sent to a client whose door command can't reach the Yun, telling it how long
+	 * until the server will try the Yun again.
+	 */
+	static String deviceUnavailableResponse(long retryAfter)
+	{
+		return String.format("DEVICE_UNAVAILABLE{\"device\":\"Arduino Yun\",\"retryAfterMillis\":%d}", retryAfter);
+	}
+
+	/**
+	 * Queues a Yun operation to start after every previously queued operation has finished.
+	 */
+	private <T> CompletableFuture<T> queueDeviceOperation(final Function<Void, CompletionStage<T>> operation)
 	{
-		//send the request to arduino
-		StringBuffer response = new StringBuffer(1024);
-				 
-		//Turn the string into a valid URL
-		URL arduinoAPIUrl = null;
+		deviceOperationLock.lock();
 		try
 		{
-			arduinoAPIUrl = new URL(stringURL);
-		} 
-		catch (MalformedURLException e2)
+			CompletableFuture<T> result = deviceOperationTail.handle(new BiFunction<Object, Throwable, Void>() {
+												public Void apply(Object o, Throwable t) { return null; }
+											}).thenCompose(operation);
+			deviceOperationTail = result;
+			return result;
+		}
+		finally
 		{
-			JOptionPane.showMessageDialog(null, "Can't form Arduino API URL",
-					"Arduino URL API Issue", JOptionPane.ERROR_MESSAGE);
+			deviceOperationLock.unlock();
 		}
-				
-		//Attempt to open the URL via a network connection to the Internet
-		HttpURLConnection httpconn = null;
-		try
+	}
+
+	DoorStatus getDoorStatus() { return doorStatus.get(); }
+	
+	void addDoorStatusListener(DoorStatusListener l) { listenerList.add(l); }
+	void removeDoorStatusListener(DoorStatusListener l) { listenerList.remove(l); }
+	
+	String getGarageDoorStatus()
+	{
+		return doorStatus.get().getStatusLine();
+	}
+	
+	/**
+	 * Answers a conditional status request. Returns NOT_MODIFIED if the client already has
+	 * the current version, otherwise the status line with its version.
+	 */
+	String getGarageDoorStatus(long clientVersion)
+	{
+		DoorStatus status = doorStatus.get();
+		return status.getVersion() == clientVersion ? "NOT_MODIFIED" : status.getVersionedStatusLine();
+	}
+
+	/**
+	 * Moves the doors to the requested state, toggling at most one door per request, if the
+	 * command asks for a state they aren't in. Completes with the response for the client
+	 * once the Yun answers; the calling thread doesn't wait for the Yun. While the Yun's
+	 * circuit breaker is open the response is DEVICE_UNAVAILABLE, immediately.
+	 */
+	CompletableFuture<String> update(final boolean bLeftDoorOpen, final boolean bRightDoorOpen)
+	{
+		//fail fast while the Yun is known to be down rather than queueing behind it
+		CircuitBreaker breaker = yunBridge.getCircuitBreaker();
+		if(breaker.isOpen())
 		{
-//			System.out.println(String.format("Sent to Arduino: %s", arduinoAPIUrl.toString()));
-			httpconn = (HttpURLConnection)arduinoAPIUrl.openConnection();
-					
-//			System.out.println(String.format("ArduninoReponseCode: %d: %S", 
-//			    httpconn.getResponseCode(), httpconn.getResponseMessage()));
-		} 
-		catch (IOException e1)
+			rejectedCount.increment();
+			return CompletableFuture.completedFuture(deviceUnavailableResponse(breaker.getRetryAfter()));
+		}
+
+		return queueDeviceOperation(new Function<Void, CompletionStage<String>>() {
+			public CompletionStage<String> apply(Void v)
+			{
+				CompletableFuture<String> response = CompletableFuture.completedFuture("UNCHANGED_GARAGE_DOOR");
+				DoorStatus status = doorStatus.get();
+
+				if(bLeftDoorOpen && !status.isLeftDoorOpen())
+				{
+					response = toggleGarageDoorUsingYun(Door.LEFT);
+					statusSink.setStoplight(0, 1);
+				}
+				else if(!bLeftDoorOpen && status.isLeftDoorOpen())
+				{
+					response = toggleGarageDoorUsingYun(Door.LEFT);
+					statusSink.setStoplight(0, 1);
+				}
+				else if(bRightDoorOpen && !status.isRightDoorOpen())
+				{
+					response = toggleGarageDoorUsingYun(Door.RIGHT);
+					statusSink.setStoplight(1, 1);
+				}
+				else if(!bRightDoorOpen && status.isRightDoorOpen())
+				{
+					response = toggleGarageDoorUsingYun(Door.RIGHT);
+					statusSink.setStoplight(1, 1);
+				}
+
+				return response;
+			}
+		});
+	}
+
+	/**
+	 * Polls the Yun for both doors and atomically publishes the new snapshot, then updates
+	 * the status sink. The poll is queued behind any door toggle in progress. Completes with
+	 * the new snapshot, or null if the Yun couldn't be reached.
+	 */
+	CompletableFuture<DoorStatus> pollDoorStatus()
+	{
+		final long start = System.nanoTime();
+		CompletableFuture<DoorStatus> poll;
+		if(ServerConfig.isYunConnected())
 		{
-			JOptionPane.showMessageDialog(null, "Can't access Arduino API",
-					"Ardunio access sssue", JOptionPane.ERROR_MESSAGE);
+			poll = queueDeviceOperation(new Function<Void, CompletionStage<DoorStatus>>() {
+				public CompletionStage<DoorStatus> apply(Void v)
+				{
+					return readDoorStatusFromYun();
+				}
+			});
 		}
+		else
+			poll = CompletableFuture.completedFuture(new DoorStatus(false, false, System.currentTimeMillis()));
+
+		return poll.thenApply(new Function<DoorStatus, DoorStatus>() {
+			public DoorStatus apply(DoorStatus status)
+			{
+				pollCount.incrementAndGet();
+				pollTimer.recordSince(start);
+				if(status == null)
+				{
+					failedPollCount.incrementAndGet();
+					pollTimer.recordError();
+					return null;	//Yun unreachable, keep the last known status
+				}
+				
+				//publish a new version only when a door has changed, so clients polling with
+				//their last version are answered NOT_MODIFIED until something happens. Polls are
+				//serialized on the device operation chain so there is a single writer.
+				DoorStatus current = doorStatus.get();
+				if(status.sameDoorsAs(current) && current.getVersion() != 0)
+					return current;
+				
+				status = status.withVersion(current.getVersion() + 1);
+				doorStatus.set(status);
+				
+				//set the stoplight status
+				if(status.isLeftDoorOpen())
+					statusSink.setStoplight(0, 2);
+				else
+					statusSink.setStoplight(0, 0);
+
+				if(status.isRightDoorOpen())
+					statusSink.setStoplight(1, 2);
+				else
+					statusSink.setStoplight(1, 0);
 				
-		//It opened successfully, get the data via HTTP GET
+				for(DoorStatusListener l : listenerList)
+					l.doorStatusChanged(status);
+				
+				return status;
+			}
+		});
+	}
+	
+	/**
+	 * Switches to fast polling while a door moves. Called when a door is toggled; the next
+	 * poll is brought forward to the fast rate.
+	 */
+	void startTransition()
+	{
+		pollScheduleLock.lock();
 		try
 		{
-			if (httpconn.getResponseCode() == HttpURLConnection.HTTP_OK)
-			{   		
-				BufferedReader input = new BufferedReader(new InputStreamReader(httpconn.getInputStream()), 1024);
-			    String strLine = null;
-			    while ((strLine = input.readLine()) != null)
-				    response.append(strLine);
-			    			
-			    input.close();
-			}
+			transitionDeadline = System.currentTimeMillis() + TRANSITION_TIMEOUT;
+			transitionStartStatus = doorStatus.get();
+			settledPolls = 0;
+			currentPollingRate = FAST_POLLING_RATE;
+			
+			if(nextPoll == null || nextPoll.getDelay(TimeUnit.MILLISECONDS) > FAST_POLLING_RATE)
+				scheduleNextPoll(FAST_POLLING_RATE);
 		}
-		catch (IOException e1)
+		finally
 		{
-			 JOptionPane.showMessageDialog(null, e1.toString(),
-						"Arduino Issue", JOptionPane.ERROR_MESSAGE);
+			pollScheduleLock.unlock();
 		}
-			    
-		//return the response as a string
-//		System.out.println(String.format("Commmand: %s, Arduino response: %s",
-//							stringURL, response.toString()));
-		
-		return response.toString();
-	}
-	
-	String getGarageDoorStatus()
-	{ 
-		return String.format("STATUS_GARAGE_DOOR{\"bLeftDoorOpen\":%s,\"bRightDoorOpen\":%s}", 
-								leftDoorOpen, rightDoorOpen);
 	}
 	
-	String update(String json)
+	/**
+	 * Works out the delay until the next poll from the result of the last one.
+	 */
+	private long nextPollingRate(DoorStatus previous, DoorStatus status)
 	{
-		Gson gson = new Gson();
-		GarageDoor garageDoorCmmd = gson.fromJson(json, GarageDoor.class);
+		long now = System.currentTimeMillis();
 		
-		doorStatusTimer.stop();
-		String response = "UNCHANGED_GARAGE_DOOR";
+		if(status == null)
+		{
+			//Yun unreachable, back off exponentially
+			consecutiveFailures++;
+			long backoff = (long) STATUS_POLLING_RATE << Math.min(consecutiveFailures - 1, 16);
+			return Math.min(MAX_BACKOFF_POLLING_RATE, backoff);
+		}
+		consecutiveFailures = 0;
 		
-		if(garageDoorCmmd.isLeftDoorOpen() && leftDoorOpen.equals("false"))
+		if(transitionDeadline != 0)
 		{
-			response = toggleGarageDoorUsingYun(Door.LEFT);
-			ServerUI.setStoplight(0, 1);
+			//a door is moving, poll fast until it has changed and settled or the door times out
+			if(!status.sameDoorsAs(transitionStartStatus) && status.sameDoorsAs(previous))
+				settledPolls++;
+			
+			if(settledPolls >= TRANSITION_SETTLE_POLLS || now > transitionDeadline)
+				transitionDeadline = 0;
+			else
+				return FAST_POLLING_RATE;
 		}
-		else if(!garageDoorCmmd.isLeftDoorOpen() && leftDoorOpen.equals("true"))
+		
+		if(!status.sameDoorsAs(previous) || currentPollingRate < STATUS_POLLING_RATE)
+			return STATUS_POLLING_RATE;
+		
+		//nothing changed, decay toward the idle rate
+		return Math.min(IDLE_POLLING_RATE, (long) (currentPollingRate * IDLE_DECAY_FACTOR));
+	}
+	
+	private void scheduleNextPoll(long delay)
+	{
+		pollScheduleLock.lock();
+		try
 		{
-			response = toggleGarageDoorUsingYun(Door.LEFT);
-			ServerUI.setStoplight(0, 1);
+			if(nextPoll != null)
+				nextPoll.cancel(false);
+			
+			nextPoll = ServerScheduler.getInstance().schedule("Door status poll", new DoorStatusPollTask(), delay);
 		}
-		else if(garageDoorCmmd.isRightDoorOpen() && rightDoorOpen.equals("false"))
+		finally
 		{
-			response = toggleGarageDoorUsingYun(Door.RIGHT);
-			ServerUI.setStoplight(1, 1);
+			pollScheduleLock.unlock();
 		}
-		else if(!garageDoorCmmd.isRightDoorOpen() && rightDoorOpen.equals("true"))
+	}
+	
+	@Override
+	public long getCurrentPollingRate() { return currentPollingRate; }
+	@Override
+	public long getPollCount() { return pollCount.get(); }
+	@Override
+	public long getFastPollCount() { return fastPollCount.get(); }
+	@Override
+	public long getFailedPollCount() { return failedPollCount.get(); }
+	boolean isDoorInTransition()
+	{
+		pollScheduleLock.lock();
+		try
 		{
-			response = toggleGarageDoorUsingYun(Door.RIGHT);
-			ServerUI.setStoplight(1, 1);
+			return transitionDeadline != 0;
 		}
-		
-		doorStatusTimer.start();
-		
-		return response;
+		finally
+		{
+			pollScheduleLock.unlock();
+		}
+	}
+
+	//GarageDoorDBMXBean, read from the JMX thread without waiting on the Yun
+	@Override
+	public boolean isLeftDoorOpen() { return doorStatus.get().isLeftDoorOpen(); }
+	@Override
+	public boolean isRightDoorOpen() { return doorStatus.get().isRightDoorOpen(); }
+	@Override
+	public long getDoorStatusVersion() { return doorStatus.get().getVersion(); }
+
+	@Override
+	public LatencyHistogram.Snapshot getPollLatency() { return getSnapshot(pollTimer); }
+	@Override
+	public LatencyHistogram.Snapshot getYunReadLatency() { return getSnapshot(readTimer); }
+	@Override
+	public LatencyHistogram.Snapshot getYunToggleLatency() { return getSnapshot(toggleTimer); }
+
+	private LatencyHistogram.Snapshot getSnapshot(LatencyHistogram timer)
+	{
+		return timer.getSnapshot(ServerMetrics.getInstance().getUptimeMillis() / 1000.0);
 	}
 
 	@Override
-	public void actionPerformed(ActionEvent e)
+	public long getYunErrorCount() { return readTimer.getErrorCount() + toggleTimer.getErrorCount(); }
+	@Override
+	public long getYunRejectedCount() { return rejectedCount.sum(); }
+	@Override
+	public String getYunCircuitState() { return yunBridge.getCircuitBreaker().getState().name(); }
+
+	@Override
+	public void forcePoll()
 	{
-		if(e.getSource() == doorStatusTimer)
+		//a poll already waiting on the Yun schedules the next one itself when it completes
+		scheduleNextPoll(0);
+	}
+
+	private class DoorStatusPollTask implements Runnable
+	{
+		@Override
+		public void run()
 		{
-			doorStatusTimer.stop();
+			//start a poll unless the last one is still waiting on the Yun, in which case it
+			//schedules the next poll when it completes
+			if(!bPollInProgress.compareAndSet(false, true))
+				return;
 			
-			if(YUN_CONNECTED)
-			{
-				getDoorStatusFromYun(Door.LEFT);
-				getDoorStatusFromYun(Door.RIGHT);
-			}
-			else
-			{
-				leftDoorOpen = "false";
-				rightDoorOpen = "false";
-			}
-			
-			//set the stoplight status
-			if(leftDoorOpen.equals("true"))
-				ServerUI.setStoplight(0, 2);
-			else
-				ServerUI.setStoplight(0, 0);
-			
-			if(rightDoorOpen.equals("true"))
-				ServerUI.setStoplight(1, 2);
-			else
-				ServerUI.setStoplight(1, 0);
+			if(currentPollingRate == FAST_POLLING_RATE)
+				fastPollCount.incrementAndGet();
 			
-//			System.out.println(String.format("STATUS_GARAGE_DOOR{\"bLeftDoorOpen\":%s,\"bRightDoorOpen\":%s}", 
-//												leftDoorOpen, rightDoorOpen));
-			doorStatusTimer.start();
+			final DoorStatus previous = doorStatus.get();
+			pollDoorStatus().whenComplete(new BiConsumer<DoorStatus, Throwable>() {
+				public void accept(DoorStatus status, Throwable t)
+				{
+					pollScheduleLock.lock();
+					try
+					{
+						bPollInProgress.set(false);
+						
+						long rate = nextPollingRate(previous, t != null ? null : status);
+						currentPollingRate = rate;
+						scheduleNextPoll(rate);
+					}
+					finally
+					{
+						pollScheduleLock.unlock();
+					}
+				}
+			});
 		}
 	}
-	
+
 	public enum Door
 	{
 		LEFT,
 		RIGHT;
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,51 @@
+package homecontrolserver;
+
+/*************************************************************************************
+ * JMX view of the garage doors and the Yun, registered as
+ * homecontrolserver:type=GarageDoorDB. The door state is the latest published snapshot and
+ * the Yun figures come from the ServerMetrics histograms, so reading an attribute never
+ * waits on a poll or a toggle in progress.
+ ************************************************************************************/
+public interface GarageDoorDBMXBean
+{
+	boolean isLeftDoorOpen();
+
+	boolean isRightDoorOpen();
+
+	/**
+	 * Version of the published door status, incremented each time a door changes.
+	 */
+	long getDoorStatusVersion();
+
+	long getCurrentPollingRate();
+
+	long getPollCount();
+
+	long getFastPollCount();
+
+	long getFailedPollCount();
+
+	/**
+	 * Time from queueing a poll to its completion, including waiting behind a toggle.
+	 */
+	LatencyHistogram.Snapshot getPollLatency();
+
+	LatencyHistogram.Snapshot getYunReadLatency();
+
+	LatencyHistogram.Snapshot getYunToggleLatency();
+
+	/**
+	 * Yun requests that failed, not counting those the circuit breaker rejected.
+	 */
+	long getYunErrorCount();
+
+	long getYunRejectedCount();
+
+	String getYunCircuitState();
+
+	/**
+	 * Polls the doors now rather than waiting for the next scheduled poll. Returns at once,
+	 * the poll runs on the server scheduler.
+	 */
+	void forcePoll();
+}
@@ -0,0 +1,88 @@
+package homecontrolserver;
+
+import java.io.IOException;
+
+/*************************************************************************************
+ * Entry point that runs the server without a window, for small Linux hosts and for running
+ * as a system service. No Swing UI is created; status and log messages are written to
+ * standard out through a ConsoleStatusSink. Start with
+ *
+ *   java homecontrolserver.HeadlessServer
+ *
+ * or pass -headless to HomeControlServer. The server stops cleanly when the JVM is shut
+ * down, for example by SIGTERM from the service manager.
+ ************************************************************************************/
+public class HeadlessServer
+{
+	private ClientManager clientMgr;
+	private ServerInterface serverIF;
+	
+	HeadlessServer()
+	{
+		//status goes to the console, no UI
+		ClientManager.setStatusSink(new ConsoleStatusSink(System.out));
+		clientMgr = ClientManager.getInstance();
+		
+		//set up database, door changes are pushed to subscribed clients
+		GarageDoorDB.getInstance().addDoorStatusListener(clientMgr);
+	}
+	
+	/**
+	 * Starts the server loop. Returns false, having logged why, if it couldn't be opened.
+	 */
+	boolean startServer()
+	{
+		try
+		{
+			serverIF = clientMgr.createServerLoop();
+		}
+		catch (IOException e)
+		{
+			clientMgr.addLogMessage("Server Interface Loop failed to start: " + e.getMessage());
+			return false;
+		}
+		serverIF.start();
+		
+		clientMgr.addLogMessage("Server Interface Loop started, " + clientMgr.getServerLoopDescription());
+		return true;
+	}
+	
+	void stopServer()
+	{
+		if(serverIF == null)
+			return;	//never started
+		
+		serverIF.stopServer();
+		try
+		{
+			serverIF.join();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		serverIF.terminateServer();
+		
+		clientMgr.addLogMessage("Server Interface Loop stopped");
+		ClientManager.closeLogFile();
+	}
+	
+	public static void main(String[] args)
+	{
+		System.setProperty("java.awt.headless", "true");
+		
+		final HeadlessServer server = new HeadlessServer();
+		if(!server.startServer())
+		{
+			ClientManager.closeLogFile();
+			System.exit(1);	//let the service manager see the failure
+		}
+		
+		Runtime.getRuntime().addShutdownHook(new Thread("ServerShutdown") {
+			public void run()
+			{
+				server.stopServer();
+			}
+		});
+	}
+}
@@ -19,7 +19,7 @@ public class HomeControlServer
 	private static final String HCC_SERVER_VERSION = "Home Control Server Version 1.0\n";
 	private static final String HCC_COPYRIGHT = "\u00A92015 John W. O'Neill";
 	private ServerUI serverUI;	//User IF
-	private ServerLoop serverIF; 	//Server loop
+	private ServerInterface serverIF; 	//Server loop
 	private ClientManager clientMgr; //Manages all connected clients
 	
 	private boolean bServerRunning;
@@ -77,11 +77,12 @@ public class HomeControlServer
         serverUI.btnStartServer.addActionListener(new UIButtonListener());
         serverUI.btnStopServer.addActionListener(new UIButtonListener());
         
-		//Set up client manager
+		//Set up client manager, status updates go to the UI
+		ClientManager.setStatusSink(serverUI);
 		clientMgr = ClientManager.getInstance();
 		
-		//set up database
-		GarageDoorDB.getInstance();
+		//set up database, door changes are pushed to subscribed clients
+		GarageDoorDB.getInstance().addDoorStatusListener(clientMgr);
 	
 		//Create the client listener socket and start the loop		
 		startServer();	//Start the server on app start up
@@ -93,6 +94,7 @@ public class HomeControlServer
     {
     	if(bServerRunning)	//Did user forget to stop the server prior to quitting? 
     		serverIF.terminateServer();
+    	ClientManager.closeLogFile();
     	return true;
     }
     
@@ -101,7 +103,7 @@ public class HomeControlServer
     public void about()
     {
     	JOptionPane.showMessageDialog(hcsFrame, HCC_SERVER_VERSION + HCC_COPYRIGHT, "About the Home Control Server",
-    			JOptionPane.INFORMATION_MESSAGE, clientMgr.getAppIcon());
+    			JOptionPane.INFORMATION_MESSAGE, serverUI.getIcon(0));
     }
     
     private void createandshowGUI()
@@ -114,6 +116,7 @@ public class HomeControlServer
 			 {
 				if(bServerRunning)	//Did user forget to stop the server prior to quitting? 
 		    		serverIF.terminateServer();
+				ClientManager.closeLogFile();
 
 				System.exit(0);	  
 			 }});
@@ -128,12 +131,20 @@ public class HomeControlServer
     
     void startServer()
     {
-    	//Create and start the server loop
-    	serverIF = new ServerLoop(clientMgr);
+    	//Create and start the server loop, either thread per client or NIO event loops
+    	try
+    	{
+    		serverIF = clientMgr.createServerLoop();
+    	}
+    	catch (IOException e)
+    	{
+    		serverUI.addLogMessage("Server Interface Loop failed to start: " + e.getMessage());
+    		return;	//the start button stays up so it can be tried again
+    	}
     	
     	serverIF.start();
 		
-		serverUI.addLogMessage("Server Interface Loop started");
+		serverUI.addLogMessage("Server Interface Loop started, " + clientMgr.getServerLoopDescription());
 		
 		serverUI.btnStartServer.setVisible(false);
 		serverUI.btnStopServer.setVisible(true);
@@ -175,6 +186,14 @@ public class HomeControlServer
     }
 	public static void main(String[] args)
 	{
+		//run without a window, for example as a system service
+		for(String arg : args)
+			if(arg.equals("-headless"))
+			{
+				HeadlessServer.main(args);
+				return;
+			}
+		
 		SwingUtilities.invokeLater(new Runnable() {
 			 public void run() {
 						try {
@@ -0,0 +1,35 @@
+package homecontrolserver;
+
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.reflect.TypeToken;
+
+/*************************************************************************************
+ * The server's shared Gson instance and cached TypeTokens. Gson is thread safe once built,
+ * so one instance serves every client rather than building a new one, with its adapter
+ * cache, for each command.
+ ************************************************************************************/
+public class JsonCodec
+{
+	private static final Gson gson = new Gson();
+	private static final Gson reportGson = new GsonBuilder().disableHtmlEscaping().create();
+	private static final Type stringListType = new TypeToken<ArrayList<String>>(){}.getType();
+
+	private JsonCodec() {}
+
+	static Gson getGson() { return gson; }
+
+	/**
+	 * Gson for reports such as GET<stats>, which leaves characters like '<' in command names
+	 * as they are rather than escaping them for HTML.
+	 */
+	static Gson getReportGson() { return reportGson; }
+
+	/**
+	 * Type of the List<String> sent in response to GET<changes>.
+	 */
+	static Type getStringListType() { return stringListType; }
+}
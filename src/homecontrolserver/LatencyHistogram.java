@@ -0,0 +1,184 @@
+package homecontrolserver;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*************************************************************************************
+ * Lock-free latency histogram with log scale buckets. Each power of two range of
+ * nanoseconds is split into SUB_BUCKETS equal buckets, so a recorded time lands in a
+ * bucket no more than 1/SUB_BUCKETS wider than itself and the reported percentiles are
+ * within 12.5% of the true value, from nanoseconds to days, in a fixed 4K of counters.
+ *
+ * record() only increments counters, it never locks or allocates, so it is cheap enough to
+ * call around every command. Reading a snapshot while others record is safe; the snapshot
+ * may be a few recordings behind.
+ ************************************************************************************/
+public class LatencyHistogram
+{
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;	//up to Long.MAX_VALUE
+
+	private String name;
+	private AtomicLongArray buckets;
+	private LongAdder totalNanos;
+	private AtomicLong maxNanos;
+	private LongAdder errorCount;
+
+	LatencyHistogram(String name)
+	{
+		this.name = name;
+		buckets = new AtomicLongArray(BUCKET_COUNT);
+		totalNanos = new LongAdder();
+		maxNanos = new AtomicLong(0);
+		errorCount = new LongAdder();
+	}
+
+	String getName() { return name; }
+	long getErrorCount() { return errorCount.sum(); }
+
+	/**
+	 * Records one operation that took the given number of nanoseconds.
+	 */
+	void record(long nanos)
+	{
+		if(nanos < 0)
+			nanos = 0;	//nanoTime isn't monotonic on every platform
+
+		buckets.incrementAndGet(bucketIndex(nanos));
+		totalNanos.add(nanos);
+
+		long max = maxNanos.get();
+		while(nanos > max && !maxNanos.compareAndSet(max, nanos))
+			max = maxNanos.get();
+	}
+
+	/**
+	 * Records one operation started at startNanos, a System.nanoTime(), ending now.
+	 */
+	void recordSince(long startNanos)
+	{
+		record(System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * Counts a failed operation. Errors are counted apart from the times, a failure may be
+	 * recorded as both.
+	 */
+	void recordError()
+	{
+		errorCount.increment();
+	}
+
+	/**
+	 * Buckets 0 to SUB_BUCKETS - 1 hold one value each; above that each power of two range
+	 * gets SUB_BUCKETS buckets, indexed by the bits just below the highest one bit.
+	 */
+	static int bucketIndex(long value)
+	{
+		if(value < SUB_BUCKETS)
+			return (int) value;
+
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * Highest value that falls in the bucket, which is what a percentile reports so it never
+	 * understates a latency.
+	 */
+	static long bucketUpperBound(int index)
+	{
+		if(index < SUB_BUCKETS)
+			return index;
+
+		int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long subBucket = index % SUB_BUCKETS;
+		long lower = (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+		long width = 1L << (exponent - SUB_BUCKET_BITS);
+		return lower + width - 1;
+	}
+
+	/**
+	 * Takes a snapshot of the counts and computes the percentiles. The rate is the count
+	 * over the given number of seconds.
+	 */
+	Snapshot getSnapshot(double seconds)
+	{
+		long[] counts = new long[BUCKET_COUNT];
+		long count = 0;
+		for(int i = 0; i < BUCKET_COUNT; i++)
+		{
+			counts[i] = buckets.get(i);
+			count += counts[i];
+		}
+
+		//a percentile can't be above the slowest time actually recorded
+		long max = maxNanos.get();
+		Snapshot s = new Snapshot();
+		s.count = count;
+		s.errors = errorCount.sum();
+		s.ratePerSec = seconds > 0 ? round(count / seconds) : 0;
+		s.meanMillis = count > 0 ? toMillis(totalNanos.sum() / count) : 0;
+		s.p50Millis = toMillis(Math.min(max, percentile(counts, count, 0.50)));
+		s.p99Millis = toMillis(Math.min(max, percentile(counts, count, 0.99)));
+		s.p999Millis = toMillis(Math.min(max, percentile(counts, count, 0.999)));
+		s.maxMillis = toMillis(max);
+		return s;
+	}
+
+	private static long percentile(long[] counts, long count, double fraction)
+	{
+		if(count == 0)
+			return 0;
+
+		long rank = Math.max(1, (long) Math.ceil(count * fraction));
+		long seen = 0;
+		for(int i = 0; i < counts.length; i++)
+		{
+			seen += counts[i];
+			if(seen >= rank)
+				return bucketUpperBound(i);
+		}
+
+		return bucketUpperBound(counts.length - 1);
+	}
+
+	private static double toMillis(long nanos)
+	{
+		return round((double) nanos / TimeUnit.MILLISECONDS.toNanos(1));
+	}
+
+	private static double round(double value)
+	{
+		return Math.round(value * 1000) / 1000.0;	//microsecond precision is plenty for a report
+	}
+
+	/**
+	 * Point in time view of a histogram, serialized as part of the GET<stats> response and
+	 * shown by JMX as a composite attribute through its getters.
+	 */
+	public static class Snapshot
+	{
+		long count;
+		long errors;
+		double ratePerSec;
+		double meanMillis;
+		double p50Millis;
+		double p99Millis;
+		double p999Millis;
+		double maxMillis;
+
+		public long getCount() { return count; }
+		public long getErrors() { return errors; }
+		public double getRatePerSec() { return ratePerSec; }
+		public double getMeanMillis() { return meanMillis; }
+		public double getP50Millis() { return p50Millis; }
+		public double getP99Millis() { return p99Millis; }
+		public double getP999Millis() { return p999Millis; }
+		public double getMaxMillis() { return maxMillis; }
+	}
+}
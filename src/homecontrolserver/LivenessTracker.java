@@ -0,0 +1,198 @@
+package homecontrolserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*************************************************************************************
+ * Hashed timing wheel of client liveness deadlines. Each tracked client has one deadline,
+ * held in the wheel slot of the tick it falls in, and advance() only visits the slots of
+ * the ticks that have passed, so the cost of a tick depends on the clients whose deadlines
+ * are due rather than on how many clients are connected. A deadline further away than one
+ * turn of the wheel stays in its slot until a later turn reaches it.
+ *
+ * A client's activity doesn't move its deadline. When the deadline passes the
+ * ExpiryHandler looks at when the client was last active and returns the next deadline,
+ * which for an active client is just its last activity plus the limit. That keeps
+ * receiving a command down to writing the client's activity time, and a client is only
+ * rescheduled once per limit however many commands it sends.
+ ************************************************************************************/
+public class LivenessTracker
+{
+	private static final int WHEEL_SIZE = 1024;	//power of two; 17 minutes of one second ticks
+
+	interface ExpiryHandler
+	{
+		/**
+		 * Called when a tracked client's deadline has passed. Returns the client's next
+		 * deadline, or 0 to stop tracking it.
+		 */
+		long deadlineExpired(Client c, long now);
+	}
+
+	private long tickMillis;
+	private Entry[] wheel;	//sentinel of each slot's circular list of entries
+	private long nextTick;	//the next tick advance() processes
+	private int trackedCount;
+	private ExpiryHandler handler;
+	private ReentrantLock lock;
+
+	LivenessTracker(long tickMillis, ExpiryHandler handler)
+	{
+		this.tickMillis = Math.max(1, tickMillis);
+		this.handler = handler;
+
+		wheel = new Entry[WHEEL_SIZE];
+		for(int i = 0; i < WHEEL_SIZE; i++)
+		{
+			wheel[i] = new Entry(null);
+			wheel[i].prev = wheel[i];
+			wheel[i].next = wheel[i];
+		}
+
+		nextTick = System.currentTimeMillis() / this.tickMillis;
+		trackedCount = 0;
+		lock = new ReentrantLock();
+	}
+
+	/**
+	 * Starts tracking a client, or moves its deadline if it is already tracked.
+	 */
+	void track(Client c, long deadline)
+	{
+		lock.lock();
+		try
+		{
+			Entry e = c.getLivenessEntry();
+			if(e == null)
+			{
+				e = new Entry(c);
+				c.setLivenessEntry(e);
+			}
+
+			if(e.next != null)
+				unlink(e);
+			else
+				trackedCount++;
+
+			e.deadline = deadline;
+			long tick = Math.max(nextTick, (deadline + tickMillis - 1) / tickMillis);
+			link(wheel[(int) (tick & (WHEEL_SIZE - 1))], e);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	void untrack(Client c)
+	{
+		lock.lock();
+		try
+		{
+			Entry e = c.getLivenessEntry();
+			if(e != null && e.next != null)
+			{
+				unlink(e);
+				trackedCount--;
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Processes the ticks up to now, passing each client whose deadline has passed to the
+	 * handler outside the lock and tracking it again if the handler returns a deadline.
+	 */
+	void advance(long now)
+	{
+		List<Client> expiredList = new ArrayList<Client>();
+
+		lock.lock();
+		try
+		{
+			long nowTick = now / tickMillis;
+
+			//after a long stall every slot is visited once, not once per missed tick
+			long tick = Math.max(nextTick, nowTick - WHEEL_SIZE + 1);
+			for(; tick <= nowTick; tick++)
+			{
+				Entry head = wheel[(int) (tick & (WHEEL_SIZE - 1))];
+				Entry e = head.next;
+				while(e != head)
+				{
+					Entry next = e.next;
+					if(e.deadline <= now)
+					{
+						unlink(e);
+						trackedCount--;
+						expiredList.add(e.client);
+					}
+					e = next;
+				}
+			}
+
+			nextTick = Math.max(nextTick, nowTick + 1);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+
+		for(Client c : expiredList)
+		{
+			long deadline = handler.deadlineExpired(c, now);
+			if(deadline > 0)
+				track(c, deadline);
+		}
+	}
+
+	int getTrackedCount()
+	{
+		lock.lock();
+		try
+		{
+			return trackedCount;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	long getTickMillis() { return tickMillis; }
+
+	private static void link(Entry head, Entry e)
+	{
+		e.prev = head.prev;
+		e.next = head;
+		head.prev.next = e;
+		head.prev = e;
+	}
+
+	private static void unlink(Entry e)
+	{
+		e.prev.next = e.next;
+		e.next.prev = e.prev;
+		e.prev = null;
+		e.next = null;
+	}
+
+	/*************************************************************************************
+	 * A client's place in the wheel. Only touched while holding the tracker's lock.
+	 ************************************************************************************/
+	static class Entry
+	{
+		private final Client client;
+		private long deadline;
+		private Entry prev, next;	//null while not in the wheel
+
+		Entry(Client client)
+		{
+			this.client = client;
+		}
+	}
+}
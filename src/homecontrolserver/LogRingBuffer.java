@@ -0,0 +1,93 @@
+package homecontrolserver;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*************************************************************************************
+ * Bounded, lock-free buffer of log lines between the threads that log and the one thread
+ * that displays them. A producer claims the next sequence number and stores its line in
+ * that slot, it never waits. The consumer drains the lines in sequence order. If producers
+ * get more than the capacity ahead, the oldest undrained lines are overwritten and counted
+ * as dropped, so a burst can never grow the buffer or block a client thread.
+ ************************************************************************************/
+public class LogRingBuffer
+{
+	private AtomicReferenceArray<Entry> slots;
+	private int mask;
+	private AtomicLong nextSequence;	//sequence the next producer claims
+	private long readSequence;	//consumer only
+	private long droppedCount;	//consumer only
+
+	/**
+	 * Creates a buffer holding at least capacity lines, rounded up to a power of two.
+	 */
+	LogRingBuffer(int capacity)
+	{
+		int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		slots = new AtomicReferenceArray<Entry>(size);
+		mask = size - 1;
+		nextSequence = new AtomicLong(0);
+		readSequence = 0;
+		droppedCount = 0;
+	}
+
+	/**
+	 * Adds a line. Safe to call from any thread, never blocks.
+	 */
+	void add(String line)
+	{
+		long seq = nextSequence.getAndIncrement();
+		slots.set((int) (seq & mask), new Entry(seq, line));
+	}
+
+	/**
+	 * Appends the lines added since the last drain to sb, oldest first, and returns how
+	 * many were appended. Only one thread may drain. A line whose producer hasn't finished
+	 * storing it ends the drain; it is picked up by the next one.
+	 */
+	int drainTo(StringBuilder sb)
+	{
+		long end = nextSequence.get();
+		if(end - readSequence > slots.length())
+		{
+			//overrun, the oldest lines have already been overwritten
+			droppedCount += end - slots.length() - readSequence;
+			readSequence = end - slots.length();
+		}
+
+		int count = 0;
+		while(readSequence < end)
+		{
+			Entry e = slots.get((int) (readSequence & mask));
+			if(e == null || e.sequence < readSequence)
+				break;	//claimed but not stored yet
+
+			if(e.sequence == readSequence)
+			{
+				sb.append(e.line);
+				count++;
+			}
+			else
+				droppedCount++;	//overwritten while draining
+
+			readSequence++;
+		}
+
+		return count;
+	}
+
+	long getDroppedCount() { return droppedCount; }
+	int getCapacity() { return slots.length(); }
+
+	private static class Entry
+	{
+		private final long sequence;
+		private final String line;
+
+		Entry(long sequence, String line)
+		{
+			this.sequence = sequence;
+			this.line = line;
+		}
+	}
+}
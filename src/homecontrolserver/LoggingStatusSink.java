@@ -0,0 +1,40 @@
+package homecontrolserver;
+
+/*************************************************************************************
+ * Status sink that copies every log message to a FileLogger before passing it on to the
+ * window or console sink it wraps, so the server's history survives a restart. Client
+ * table and stop light updates are only passed on.
+ ************************************************************************************/
+public class LoggingStatusSink implements ServerStatusSink
+{
+	private ServerStatusSink sink;
+	private FileLogger fileLogger;
+
+	LoggingStatusSink(ServerStatusSink sink, FileLogger fileLogger)
+	{
+		this.sink = sink;
+		this.fileLogger = fileLogger;
+	}
+
+	@Override
+	public void addLogMessage(String mssg)
+	{
+		fileLogger.log(mssg);
+		sink.addLogMessage(mssg);
+	}
+
+	@Override
+	public void clientChanged(Client c, int clientCount)
+	{
+		sink.clientChanged(c, clientCount);
+	}
+
+	@Override
+	public void setStoplight(int door, int pos)
+	{
+		sink.setStoplight(door, pos);
+	}
+
+	FileLogger getFileLogger() { return fileLogger; }
+	ServerStatusSink getSink() { return sink; }
+}
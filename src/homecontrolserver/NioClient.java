@@ -0,0 +1,484 @@
+package homecontrolserver;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+
+/*************************************************************************************
+ * A client connection serviced by an NioEventLoop. The client holds no thread and no
+ * stream buffers of its own: bytes are read into the event loop's shared buffer and only
+ * an incomplete trailing line is copied into the client. Responses are queued and written
+ * by the event loop when the channel is writable. While a command's response is waiting
+ * on the garage door hardware, reading is suspended so responses stay in command order.
+ * After a BinaryProtocol login the input is read as frames rather than lines.
+ ************************************************************************************/
+public class NioClient extends Client
+{
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+	private static final int MAX_LINE_LENGTH = 1024 * 8;
+
+	private SocketChannel channel;
+	private SelectionKey key;
+	private NioEventLoop loop;
+
+	private byte[] inBuf;	//holds unprocessed input, null when there is none
+	private int inLen;
+	private boolean bReadSuspended;
+
+	private Queue<ByteBuffer> writeQ;
+	private boolean bClosing, bClosed;
+	private boolean bBatchingOutput;	//responses are held until the current batch is done
+	private AtomicBoolean bFlushScheduled;
+	private ClientTask flushTask;
+
+	NioClient(SocketChannel channel, SelectionKey key, NioEventLoop loop, int id)
+	{
+		super(id);
+		this.channel = channel;
+		this.key = key;
+		this.loop = loop;
+
+		inBuf = null;
+		inLen = 0;
+		bReadSuspended = false;
+
+		writeQ = new ConcurrentLinkedQueue<ByteBuffer>();
+		bClosing = false;
+		bClosed = false;
+		bBatchingOutput = false;
+		bFlushScheduled = new AtomicBoolean(false);
+		flushTask = new ClientTask() {
+			void runTask()
+			{
+				bFlushScheduled.set(false);
+				flush();
+			}
+		};
+
+		//tell the client that they have successfully connected to the server
+		sendLine(WELCOME_MESSAGE);
+	}
+
+	/**
+	 * Called by the event loop when the channel is readable. The loop's shared read buffer
+	 * is passed in so idle clients don't each hold a buffer.
+	 */
+	void read(ByteBuffer readBuffer)
+	{
+		try
+		{
+			readBuffer.clear();
+			int nRead = channel.read(readBuffer);
+			if(nRead < 0)
+				throw new EOFException("end of stream");
+
+			readBuffer.flip();
+			if(inBuf == null)
+				inBuf = new byte[Math.max(nRead, 128)];
+			else if(inLen + nRead > inBuf.length)
+			{
+				byte[] grown = new byte[Math.max(inLen + nRead, inBuf.length * 2)];
+				System.arraycopy(inBuf, 0, grown, 0, inLen);
+				inBuf = grown;
+			}
+			readBuffer.get(inBuf, inLen, nRead);
+			inLen += nRead;
+
+			processInputBatch();
+		}
+		catch (IOException e)
+		{
+			died(String.format("Client %d died, I/O exception %s, last command: %s",
+					getClientID(), e.getMessage(), getLastCommand()));
+		}
+	}
+
+	/**
+	 * Processes the pipelined commands in the input buffer, holding their responses until
+	 * all of them have been handled and then writing them together.
+	 */
+	private void processInputBatch() throws IOException
+	{
+		bBatchingOutput = true;
+		try
+		{
+			processInput();
+		}
+		finally
+		{
+			bBatchingOutput = false;
+		}
+		flush();
+	}
+
+	/**
+	 * Processes every complete line, or frame for a binary client, in the input buffer,
+	 * stopping early if a blocking command was handed off to a worker. Any remaining bytes
+	 * are kept for the next read. The mode is checked before each command since a login
+	 * switches it.
+	 */
+	private void processInput() throws IOException
+	{
+		int start = 0;
+		while(start < inLen && !bReadSuspended && !bClosing)
+		{
+			int consumed = isBinaryMode() ? processNextFrame(start) : processNextLine(start);
+			if(consumed == 0)
+				break;	//incomplete, wait for more input
+			start += consumed;
+		}
+
+		//keep any partial line, release the buffer if it's empty
+		if(start >= inLen)
+		{
+			inBuf = null;
+			inLen = 0;
+		}
+		else if(start > 0)
+		{
+			System.arraycopy(inBuf, start, inBuf, 0, inLen - start);
+			inLen -= start;
+		}
+
+		if(inLen > MAX_LINE_LENGTH && !isBinaryMode())
+			throw new IOException("command exceeds maximum line length");
+	}
+
+	/**
+	 * Handles the line starting at start if it is complete. Returns the number of bytes
+	 * consumed, 0 if the line hasn't all arrived.
+	 */
+	private int processNextLine(int start)
+	{
+		for(int index = start; index < inLen; index++)
+			if(inBuf[index] == '\n')
+			{
+				int end = index;
+				if(end > start && inBuf[end-1] == '\r')
+					end--;
+
+				String command = new String(inBuf, start, end - start, CHARSET);
+				try
+				{
+					processCommand(command);
+					awaitPendingResponse();
+				}
+				catch (RuntimeException e)
+				{
+					commandFailed(e);
+				}
+				return index + 1 - start;
+			}
+
+		return 0;
+	}
+
+	/**
+	 * Handles the frame starting at start if it is complete. The payload is handled in place
+	 * in the input buffer. Returns the number of bytes consumed, 0 if the frame hasn't all
+	 * arrived.
+	 */
+	private int processNextFrame(int start) throws IOException
+	{
+		if(inLen - start < BinaryProtocol.HEADER_LENGTH)
+			return 0;
+
+		int length = BinaryProtocol.getInt(inBuf, start);
+		if(length < 1 || length > BinaryProtocol.MAX_FRAME_LENGTH)
+			throw new IOException("invalid frame length " + length);
+		if(inLen - start < 4 + length)
+			return 0;
+
+		try
+		{
+			processFrame(inBuf[start+4] & 0xFF, inBuf, start + BinaryProtocol.HEADER_LENGTH, length - 1);
+			awaitPendingResponse();
+		}
+		catch (RuntimeException e)
+		{
+			commandFailed(e);
+		}
+		return 4 + length;
+	}
+
+	/**
+	 * If the last command's response comes later, suspends reads until it has been sent.
+	 */
+	private void awaitPendingResponse()
+	{
+		CompletableFuture<Void> pending = takePendingResponse();
+		if(pending != null && !pending.isDone())
+		{
+			bReadSuspended = true;
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+
+			pending.whenComplete(new BiConsumer<Void, Throwable>() {
+				public void accept(Void v, final Throwable t)
+				{
+					//back on the event loop, either resume reading or report the failure
+					loop.execute(new ClientTask() {
+						void runTask()
+						{
+							if(t != null)
+								commandFailed(new RuntimeException(t));
+							else
+								resumeReading();
+						}
+					});
+				}
+			});
+		}
+	}
+
+	private void resumeReading()
+	{
+		bReadSuspended = false;
+		if(bClosing || !key.isValid())
+			return;
+
+		try
+		{
+			if(inLen > 0)
+				processInputBatch();
+
+			if(!bReadSuspended && key.isValid())
+				key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+		}
+		catch (IOException e)
+		{
+			died(String.format("Client %d died, I/O exception %s, last command: %s",
+					getClientID(), e.getMessage(), getLastCommand()));
+		}
+	}
+
+	/**
+	 * Disconnects the client after handling its input or one of its tasks threw. Called on
+	 * the event loop.
+	 */
+	void commandFailed(RuntimeException e)
+	{
+		died(String.format("Client %d died, %s %s, last command: %s", getClientID(),
+				e.getClass().getSimpleName(), e.getMessage(), getLastCommand()));
+	}
+
+	/**
+	 * Queues a response line. Safe to call from any thread; the write itself always happens
+	 * on the event loop.
+	 */
+	@Override
+	protected void writeLine(String line)
+	{
+		queueOutput(ByteBuffer.wrap((line + "\n").getBytes(CHARSET)));
+	}
+
+	/**
+	 * Queues an encoded frame. The frame may be shared, such as a DoorStatus frame, so it is
+	 * wrapped in a buffer of its own rather than copied.
+	 */
+	@Override
+	protected void writeFrame(byte[] frame)
+	{
+		queueOutput(ByteBuffer.wrap(frame));
+	}
+
+	/**
+	 * Lines and frames share the write queue, so they are already in order.
+	 */
+	@Override
+	protected void flushTextOutput() {}
+
+	private void queueOutput(ByteBuffer buf)
+	{
+		writeQ.add(buf);
+
+		if(loop.inEventLoop())
+		{
+			if(!bBatchingOutput)
+				flush();
+		}
+		else if(bFlushScheduled.compareAndSet(false, true))
+			loop.execute(flushTask);	//one flush for however many lines are queued before it runs
+	}
+
+	@Override
+	void flushOutput()
+	{
+		if(loop.inEventLoop())
+			flush();
+		else if(bFlushScheduled.compareAndSet(false, true))
+			loop.execute(flushTask);
+	}
+
+	/**
+	 * Pushed lines are queued on the event loop like any other output, no extra thread
+	 * needed, and written together when the push queue has been drained.
+	 */
+	@Override
+	protected void schedulePushDrain(final Runnable drainTask)
+	{
+		loop.execute(new ClientTask() {
+			void runTask()
+			{
+				bBatchingOutput = true;
+				try
+				{
+					drainTask.run();
+				}
+				finally
+				{
+					bBatchingOutput = false;
+				}
+				flush();
+			}
+		});
+	}
+
+	/**
+	 * Writes as much of the queued output as the channel will take, gathering the queued
+	 * responses into as few writes as possible. If the socket buffer fills, OP_WRITE is set
+	 * and the loop calls back when the channel is writable again.
+	 */
+	void flush()
+	{
+		if(bClosed)
+			return;
+
+		ByteBuffer[] gather = loop.getGatherBuffers();
+		try
+		{
+			while(!writeQ.isEmpty())
+			{
+				int n = 0;
+				for(ByteBuffer buf : writeQ)
+				{
+					gather[n++] = buf;
+					if(n == gather.length)
+						break;
+				}
+
+				channel.write(gather, 0, n);
+				boolean bSocketFull = gather[n-1].hasRemaining();
+				Arrays.fill(gather, 0, n, null);
+
+				//drop what was written, a partly written buffer stays at the head of the queue
+				ByteBuffer head;
+				while((head = writeQ.peek()) != null && !head.hasRemaining())
+					writeQ.poll();
+
+				if(bSocketFull)
+				{
+					key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+					return;
+				}
+			}
+
+			if(key.isValid())
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+
+			if(bClosing)
+				closeChannel();
+		}
+		catch (IOException e)
+		{
+			died(String.format("Client %d died, I/O exception %s, last command: %s",
+					getClientID(), e.getMessage(), getLastCommand()));
+		}
+	}
+
+	/**
+	 * Closes the connection once any queued responses, such as GOODBYE, have been written.
+	 */
+	@Override
+	void closeClientSocket()
+	{
+		if(loop.inEventLoop())
+		{
+			bClosing = true;
+			flush();
+		}
+		else
+		{
+			loop.execute(new ClientTask() {
+				void runTask()
+				{
+					bClosing = true;
+					flush();
+				}
+			});
+		}
+	}
+
+	private void died(String logMssg)
+	{
+		if(bClosed)
+			return;
+
+		closeChannel();
+		ClientManager clientMgr = ClientManager.getInstance();
+		clientMgr.addLogMessage(logMssg);
+		clientMgr.clientDied(this);
+	}
+
+	private void closeChannel()
+	{
+		if(bClosed)
+			return;
+
+		bClosed = true;
+		bClosing = true;
+		key.cancel();
+		try
+		{
+			channel.close();
+		}
+		catch (IOException e)
+		{
+			String logMssg = String.format("Client %d: Close Socket IOException: %s", getClientID(), e.getMessage());
+			ClientManager.getInstance().addLogMessage(logMssg);
+		}
+		writeQ.clear();
+	}
+
+	/**
+	 * A task this client queues on its event loop. If the task throws, only this client is
+	 * disconnected; the loop and its other clients carry on.
+	 */
+	private abstract class ClientTask implements Runnable
+	{
+		public final void run()
+		{
+			try
+			{
+				runTask();
+			}
+			catch (RuntimeException e)
+			{
+				commandFailed(e);
+			}
+		}
+
+		abstract void runTask();
+	}
+
+	/**
+	 * Called by the event loop when it shuts down.
+	 */
+	void loopClosed()
+	{
+		if(!bClosed)
+		{
+			setClientState(ClientState.Ended);
+			closeChannel();
+			ClientManager.getInstance().clientDied(this);
+		}
+	}
+}
@@ -0,0 +1,205 @@
+package homecontrolserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/*************************************************************************************
+ * One selector thread servicing many NioClient connections. The NioServerLoop accepts
+ * sockets and hands each one to an event loop, which owns the channel for the life of the
+ * connection. Work from other threads, such as registering a channel or flushing output,
+ * is queued with execute() and run on the loop thread.
+ *
+ * An exception from one client's key or task disconnects that client only; the loop keeps
+ * running for the others.
+ ************************************************************************************/
+public class NioEventLoop extends Thread
+{
+	private static final int SELECT_TIMEOUT = 1000;	//one second
+	private static final int READ_BUFFER_SIZE = 1024 * 8;
+	private static final int MAX_GATHER_BUFFERS = 32;	//most responses written in one gathering write
+
+	private Selector selector;
+	private Queue<Runnable> taskQ;
+	private ByteBuffer readBuffer;	//shared by every client on this loop
+	private ByteBuffer[] gatherBuffers;	//shared by every client on this loop, for writes
+	private volatile boolean bRunLoop;
+
+	NioEventLoop(int index) throws IOException
+	{
+		super("NioEventLoop-" + index);
+		selector = Selector.open();
+		taskQ = new ConcurrentLinkedQueue<Runnable>();
+		readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+		gatherBuffers = new ByteBuffer[MAX_GATHER_BUFFERS];
+		bRunLoop = true;
+	}
+
+	boolean inEventLoop() { return Thread.currentThread() == this; }
+
+	/**
+	 * Scratch array for gathering a client's queued responses into one write. Only used on
+	 * the loop thread.
+	 */
+	ByteBuffer[] getGatherBuffers() { return gatherBuffers; }
+
+	/**
+	 * Queues a task to run on the event loop thread and wakes the selector.
+	 */
+	void execute(Runnable task)
+	{
+		taskQ.add(task);
+		if(!inEventLoop())
+			selector.wakeup();
+	}
+
+	/**
+	 * Hands a newly accepted channel to this loop. Registration happens on the loop thread
+	 * so the selector is never blocked in select() while a key is added.
+	 */
+	void register(final SocketChannel channel)
+	{
+		execute(new Runnable() {
+			public void run()
+			{
+				try
+				{
+					channel.configureBlocking(false);
+					ClientSocketOptions.apply(channel.socket());
+					SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+					NioClient c = ClientManager.getInstance().addClient(channel, key, NioEventLoop.this);
+					key.attach(c);
+				}
+				catch (IOException e)
+				{
+					ClientManager.getInstance().addLogMessage(
+							String.format("%s: Register client IOException: %s", getName(), e.getMessage()));
+					closeChannel(channel);
+				}
+				catch (RuntimeException e)
+				{
+					ClientManager.getInstance().addLogMessage(
+							String.format("%s: Register client %s: %s", getName(), e.getClass().getSimpleName(), e.getMessage()));
+					closeChannel(channel);
+				}
+			}
+		});
+	}
+
+	/**
+	 * The run method of this thread.
+	 */
+	public void run()
+	{
+		while(bRunLoop)
+		{
+			try
+			{
+				selector.select(SELECT_TIMEOUT);
+
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while(it.hasNext())
+				{
+					SelectionKey key = it.next();
+					it.remove();
+
+					NioClient c = (NioClient) key.attachment();
+					if(c == null)
+						continue;
+
+					try
+					{
+						if(key.isValid() && key.isReadable())
+							c.read(readBuffer);
+						if(key.isValid() && key.isWritable())
+							c.flush();
+					}
+					catch (RuntimeException e)
+					{
+						c.commandFailed(e);	//closes this client's channel only
+					}
+				}
+
+				runTasks();
+			}
+			catch (IOException e)
+			{
+				ClientManager.getInstance().addLogMessage(
+						String.format("%s: Selector IOException: %s", getName(), e.getMessage()));
+			}
+		}
+
+		//loop is stopping, close every connection it owns
+		runTasks();
+		for(SelectionKey key : selector.keys())
+		{
+			NioClient c = (NioClient) key.attachment();
+			if(c != null)
+				c.loopClosed();
+		}
+
+		try
+		{
+			selector.close();
+		}
+		catch (IOException e)
+		{
+			ClientManager.getInstance().addLogMessage(
+					String.format("%s: Selector close IOException: %s", getName(), e.getMessage()));
+		}
+	}
+
+	/**
+	 * Runs the queued tasks. Client tasks disconnect their own client if they throw; an
+	 * exception that still gets here is logged and the next task runs.
+	 */
+	private void runTasks()
+	{
+		Runnable task;
+		while((task = taskQ.poll()) != null)
+		{
+			try
+			{
+				task.run();
+			}
+			catch (RuntimeException e)
+			{
+				ClientManager.getInstance().addLogMessage(
+						String.format("%s: Task %s: %s", getName(), e.getClass().getSimpleName(), e.getMessage()));
+			}
+		}
+	}
+
+	private void closeChannel(SocketChannel channel)
+	{
+		try
+		{
+			channel.close();	//also cancels its key, if it was registered
+		}
+		catch (IOException e)
+		{
+			ClientManager.getInstance().addLogMessage(
+					String.format("%s: Close channel IOException: %s", getName(), e.getMessage()));
+		}
+	}
+
+	void stopLoop()
+	{
+		bRunLoop = false;
+		selector.wakeup();
+	}
+
+	/**
+	 * Releases the selector of a loop that was never started, such as when the server loop
+	 * failed to open.
+	 */
+	void closeSelector() throws IOException
+	{
+		selector.close();
+	}
+}
@@ -0,0 +1,181 @@
+package homecontrolserver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+
+/*************************************************************************************
+ * Selector based alternative to ServerLoop. Accepts connections on the server port and
+ * spreads them round robin over a small fixed set of NioEventLoop threads, so the number
+ * of server threads no longer grows with the number of connected clients.
+ ************************************************************************************/
+public class NioServerLoop extends Thread implements ServerInterface, ServerLoopMXBean
+{
+	private static final int SERVER_TIMEOUT = 3000;	//three seconds
+
+	private ServerSocketChannel listener;
+	private Selector acceptSelector;
+	private NioEventLoop[] eventLoops;
+	private int nextLoop;
+	private RateMeter acceptMeter;
+
+	private volatile boolean bRunServer;
+
+	/**
+	 * Opens the listener and the event loops. Throws if the port can't be bound, in which
+	 * case nothing is left open and the loop must not be started.
+	 */
+	NioServerLoop(ClientManager cmgr) throws IOException
+	{
+		super("NioServerLoop");
+		bRunServer = true;
+		nextLoop = 0;
+		acceptMeter = new RateMeter();
+
+		//Create the client listener channel and the event loops
+		try
+		{
+			listener = ServerSocketChannel.open();
+			listener.socket().setReuseAddress(true);
+			listener.socket().bind(new InetSocketAddress(ServerConfig.getServerPort()));
+			listener.configureBlocking(false);
+
+			acceptSelector = Selector.open();
+			listener.register(acceptSelector, SelectionKey.OP_ACCEPT);
+
+			eventLoops = new NioEventLoop[ServerConfig.getNioThreadCount()];
+			for(int i=0; i<eventLoops.length; i++)
+				eventLoops[i] = new NioEventLoop(i);
+		}
+		catch (IOException e)
+		{
+			closeQuietly();
+			throw e;
+		}
+	}
+
+	/**
+	 * The run method of this thread.
+	 */
+	public void run()
+	{
+		bRunServer = true;
+
+		for(NioEventLoop loop : eventLoops)
+			loop.start();
+
+		while(bRunServer)
+		{
+			try
+			{
+				//Server loops listening for clients to connect
+				acceptSelector.select(SERVER_TIMEOUT);
+
+				Iterator<SelectionKey> it = acceptSelector.selectedKeys().iterator();
+				while(it.hasNext())
+				{
+					it.next();
+					it.remove();
+
+					SocketChannel clientChannel;
+					while((clientChannel = listener.accept()) != null)
+					{
+						acceptMeter.mark();
+						eventLoops[nextLoop].register(clientChannel);
+						nextLoop = (nextLoop + 1) % eventLoops.length;
+					}
+				}
+			}
+			catch (ClosedSelectorException cse)
+			{
+				break;	//server was terminated without being stopped first
+			}
+			catch (IOException e)
+			{
+				ClientManager.getInstance().addLogMessage("NioServerLoop: Accept IOException: " + e.getMessage());
+			}
+		}
+
+		//stop the event loops, each one closes the clients it owns
+		for(NioEventLoop loop : eventLoops)
+		{
+			loop.stopLoop();
+			try
+			{
+				loop.join();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	@Override
+	public String getEngine() { return ServerConfig.ENGINE_NIO; }
+
+	@Override
+	public boolean isRunning() { return bRunServer && isAlive(); }
+
+	@Override
+	public long getAcceptedCount() { return acceptMeter.getCount(); }
+
+	@Override
+	public double getAcceptRate() { return acceptMeter.getRatePerSecond(); }
+
+	@Override
+	public void stopServer()
+	{
+		bRunServer = false;
+		acceptSelector.wakeup();
+	}
+
+	@Override
+	public boolean terminateServer()
+	{
+		boolean bServerSocketClosed = false;
+		bRunServer = false;
+		for(NioEventLoop loop : eventLoops)
+			loop.stopLoop();
+
+		try
+		{
+			acceptSelector.close();
+			listener.close();
+			bServerSocketClosed = true;
+		}
+		catch (IOException e)
+		{
+			ClientManager.getInstance().addLogMessage("NioServerLoop: Close listener IOException: " + e.getMessage());
+		}
+
+		return bServerSocketClosed;
+	}
+
+	/**
+	 * Closes whatever the constructor managed to open before it failed.
+	 */
+	private void closeQuietly()
+	{
+		try
+		{
+			if(eventLoops != null)
+				for(NioEventLoop loop : eventLoops)
+					if(loop != null)
+						loop.closeSelector();
+			if(acceptSelector != null)
+				acceptSelector.close();
+			if(listener != null)
+				listener.close();
+		}
+		catch (IOException ioe)
+		{
+			//already failing, the original exception is the one reported
+		}
+	}
+}
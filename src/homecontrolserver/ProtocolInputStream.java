@@ -0,0 +1,108 @@
+package homecontrolserver;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/*************************************************************************************
+ * Buffered input for a blocking client connection that can read both text protocol lines
+ * and BinaryProtocol frames from the same stream, since a client switches from lines to
+ * frames after its login. A Reader can't be used for this because it reads ahead and
+ * decodes bytes that belong to the first frame.
+ ************************************************************************************/
+public class ProtocolInputStream extends BufferedInputStream
+{
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+	private static final int BUFFER_SIZE = 1024 * 8;
+
+	private byte[] lineBuf;	//reused for each line and frame payload
+	private byte[] headerBuf;
+	private int frameOpcode, frameLength;
+
+	ProtocolInputStream(InputStream in)
+	{
+		super(in, BUFFER_SIZE);
+		lineBuf = new byte[128];
+		headerBuf = new byte[BinaryProtocol.HEADER_LENGTH];
+	}
+
+	/**
+	 * Reads a line ended by \n or \r\n, decoded as UTF-8. Returns null at the end of the
+	 * stream, like BufferedReader.readLine.
+	 */
+	String readLine() throws IOException
+	{
+		int len = 0;
+		int b;
+		while((b = read()) != '\n')
+		{
+			if(b < 0)
+			{
+				if(len == 0)
+					return null;
+				break;
+			}
+
+			if(len == lineBuf.length)
+				growLineBuffer(len + 1);
+			lineBuf[len++] = (byte) b;
+		}
+
+		if(len > 0 && lineBuf[len-1] == '\r')
+			len--;
+
+		return new String(lineBuf, 0, len, CHARSET);
+	}
+
+	/**
+	 * Reads the next frame. Its opcode and payload are then available from getFrameOpcode,
+	 * getFrameBuffer and getFrameLength until the next read.
+	 */
+	void readFrame() throws IOException
+	{
+		readFully(headerBuf, 0, headerBuf.length);
+
+		int length = BinaryProtocol.getInt(headerBuf, 0);
+		if(length < 1 || length > BinaryProtocol.MAX_FRAME_LENGTH)
+			throw new IOException("invalid frame length " + length);
+
+		frameOpcode = headerBuf[4] & 0xFF;
+		frameLength = length - 1;
+		if(frameLength > lineBuf.length)
+			growLineBuffer(frameLength);
+		readFully(lineBuf, 0, frameLength);
+	}
+
+	int getFrameOpcode() { return frameOpcode; }
+	byte[] getFrameBuffer() { return lineBuf; }
+	int getFrameLength() { return frameLength; }
+
+	/**
+	 * True if there is input that can be read without blocking.
+	 */
+	boolean ready() throws IOException
+	{
+		return available() > 0;
+	}
+
+	private void readFully(byte[] b, int off, int len) throws IOException
+	{
+		while(len > 0)
+		{
+			int n = read(b, off, len);
+			if(n < 0)
+				throw new EOFException("end of stream");
+			off += n;
+			len -= n;
+		}
+	}
+
+	private void growLineBuffer(int minLength)
+	{
+		byte[] grown = new byte[Math.max(minLength, lineBuf.length * 2)];
+		System.arraycopy(lineBuf, 0, grown, 0, lineBuf.length);
+		lineBuf = grown;
+	}
+}
@@ -0,0 +1,194 @@
+package homecontrolserver;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*************************************************************************************
+ * Bounded queue of messages the server pushes to one client, text lines or DoorStatus
+ * snapshots that are encoded for the client's protocol when sent. A message offered with a
+ * coalescing key replaces the queued message with the same key, so a client that reads
+ * slowly gets the latest door status rather than every status in between. When the queue
+ * is full the overflow policy decides what happens:
+ *
+ *   drop_oldest - the oldest queued message is discarded
+ *   resync      - the queue is cleared, the new message included, and the client is sent
+ *                 only RESYNC, telling it to fetch the current state
+ *   disconnect  - the offer fails and the client is disconnected
+ ************************************************************************************/
+public class PushQueue
+{
+	static final String RESYNC = "RESYNC";
+
+	enum OverflowPolicy { DROP_OLDEST, RESYNC, DISCONNECT }
+
+	private LinkedList<Entry> queue;
+	private int capacity;
+	private OverflowPolicy policy;
+	private long droppedCount, coalescedCount;
+	private volatile int depth;	//queue size as of the last change, read without the lock
+	private ReentrantLock lock;
+
+	PushQueue(int capacity, OverflowPolicy policy)
+	{
+		queue = new LinkedList<Entry>();
+		this.capacity = Math.max(1, capacity);
+		this.policy = policy;
+		droppedCount = 0;
+		coalescedCount = 0;
+		depth = 0;
+		lock = new ReentrantLock();
+	}
+
+	/**
+	 * Queues a message. If key isn't null and a message with the same key is queued, that
+	 * message is replaced. Returns false if the queue is full and the policy is to disconnect.
+	 */
+	boolean offer(String key, Object message)
+	{
+		lock.lock();
+		try
+		{
+			if(key != null)
+			{
+				Iterator<Entry> it = queue.iterator();
+				while(it.hasNext())
+				{
+					Entry entry = it.next();
+					if(key.equals(entry.key))
+					{
+						//superseded, the latest message takes its place at the end of the queue
+						it.remove();
+						coalescedCount++;
+						break;
+					}
+				}
+			}
+
+			if(queue.size() >= capacity)
+			{
+				if(policy == OverflowPolicy.DISCONNECT)
+				{
+					depth = queue.size();
+					return false;
+				}
+				else if(policy == OverflowPolicy.RESYNC)
+				{
+					//the new message is part of the state the client fetches when it resyncs
+					droppedCount += queue.size() + 1;
+					if(RESYNC.equals(queue.getFirst().message))
+						droppedCount--;	//already resyncing, that isn't a message lost
+					queue.clear();
+					queue.add(new Entry(null, RESYNC));
+					depth = queue.size();
+					return true;
+				}
+				else
+				{
+					queue.removeFirst();
+					droppedCount++;
+				}
+			}
+
+			queue.add(new Entry(key, message));
+			depth = queue.size();
+			return true;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes and returns the oldest message, or null if the queue is empty.
+	 */
+	Object poll()
+	{
+		lock.lock();
+		try
+		{
+			Entry entry = queue.poll();
+			depth = queue.size();
+			return entry == null ? null : entry.message;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	boolean isEmpty()
+	{
+		lock.lock();
+		try
+		{
+			return queue.isEmpty();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	void clear()
+	{
+		lock.lock();
+		try
+		{
+			queue.clear();
+			depth = 0;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	long getDroppedCount()
+	{
+		lock.lock();
+		try
+		{
+			return droppedCount;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	long getCoalescedCount()
+	{
+		lock.lock();
+		try
+		{
+			return coalescedCount;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Number of queued messages, without taking the lock, so the server's monitoring never
+	 * waits on a client that is pushing or draining.
+	 */
+	int getDepth() { return depth; }
+
+	OverflowPolicy getPolicy() { return policy; }
+	int getCapacity() { return capacity; }
+
+	private static class Entry
+	{
+		private final String key;
+		private final Object message;	//a String line or a DoorStatus
+
+		Entry(String key, Object message)
+		{
+			this.key = key;
+			this.message = message;
+		}
+	}
+}
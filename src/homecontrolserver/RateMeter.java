@@ -0,0 +1,71 @@
+package homecontrolserver;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*************************************************************************************
+ * Counts events and their rate over the last minute, such as connections accepted. The
+ * minute is kept as one slot per second; a slot holds its second and the count in that
+ * second packed in one long, so mark() is a single compare and set that also clears a slot
+ * left over from a minute ago. Nothing locks, so reading the rate never holds up the thread
+ * counting.
+ ************************************************************************************/
+public class RateMeter
+{
+	private static final int WINDOW_SECONDS = 60;
+	private static final int COUNT_BITS = 24;	//a slot counts up to 16 million events a second
+	private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+
+	private LongAdder total;
+	private AtomicLongArray slots;
+
+	RateMeter()
+	{
+		total = new LongAdder();
+		slots = new AtomicLongArray(WINDOW_SECONDS);
+	}
+
+	/**
+	 * Counts one event now.
+	 */
+	void mark()
+	{
+		total.increment();
+
+		long second = System.currentTimeMillis() / 1000;
+		int index = (int) (second % WINDOW_SECONDS);
+		while(true)
+		{
+			long slot = slots.get(index);
+			long next;
+			if(slot >>> COUNT_BITS != second)
+				next = second << COUNT_BITS | 1;	//first event this second, the slot is a minute old
+			else if((slot & COUNT_MASK) != COUNT_MASK)
+				next = slot + 1;
+			else
+				return;	//slot is full, the rate is off the scale anyway
+
+			if(slots.compareAndSet(index, slot, next))
+				return;
+		}
+	}
+
+	long getCount() { return total.sum(); }
+
+	/**
+	 * Events per second averaged over the last minute.
+	 */
+	double getRatePerSecond()
+	{
+		long now = System.currentTimeMillis() / 1000;
+		long count = 0;
+		for(int i = 0; i < WINDOW_SECONDS; i++)
+		{
+			long slot = slots.get(i);
+			if(now - (slot >>> COUNT_BITS) < WINDOW_SECONDS)
+				count += slot & COUNT_MASK;
+		}
+
+		return (double) count / WINDOW_SECONDS;
+	}
+}
@@ -0,0 +1,323 @@
+package homecontrolserver;
+
+/*************************************************************************************
+ * Start up options for the server. Each option is read from a java system property
+ * (-Dhcs.xxx=value) so the server can be configured from the command line or a service
+ * script without rebuilding. Missing or malformed values fall back to the default.
+ ************************************************************************************/
+public class ServerConfig
+{
+	private static final int DEFAULT_SERVER_PORT = 8901;
+	private static final int MAX_NIO_THREADS = 4;
+	private static final String DEFAULT_YUN_URL = "http://arduino.local/arduino/";
+	private static final int DEFAULT_PUSH_QUEUE_CAPACITY = 32;
+	private static final int DEFAULT_MAX_CHANGES_WAIT = 1000 * 60;	//one minute
+	private static final int DEFAULT_YUN_SIM_TRAVEL_TIME = 1000 * 10;	//ten seconds
+	private static final int DEFAULT_HEARTBEAT_LOST_LIMIT = 60 * 3;	//three minutes, in seconds
+	private static final int DEFAULT_HEARTBEAT_TERMINAL_LIMIT = 60 * 10;	//ten minutes
+	private static final int DEFAULT_HEARTBEAT_KILL_LIMIT = 60 * 11;	//eleven minutes
+	private static final int DEFAULT_PING_TIMEOUT = 10;	//seconds
+	private static final int DEFAULT_LOG_RETENTION = 1000;	//lines
+	private static final String DEFAULT_LOG_FILE = "logs/homecontrolserver.log";
+	private static final int DEFAULT_LOG_FILE_MAX_SIZE = 1024 * 1024 * 10;	//ten megabytes
+	private static final int DEFAULT_LOG_FILE_COUNT = 10;
+
+	static final String ENGINE_THREAD = "thread";	//one blocking thread per client
+	static final String ENGINE_NIO = "nio";			//selector based event loops
+
+	static final String CLIENT_THREADS_PLATFORM = "platform";
+	static final String CLIENT_THREADS_VIRTUAL = "virtual";
+
+	private ServerConfig() {}
+
+	static int getServerPort()
+	{
+		return getInt("hcs.port", DEFAULT_SERVER_PORT);
+	}
+
+	static String getEngine()
+	{
+		return System.getProperty("hcs.engine", ENGINE_THREAD).trim().toLowerCase();
+	}
+
+	static boolean isNioEngine()
+	{
+		return getEngine().equals(ENGINE_NIO);
+	}
+
+	static int getNioThreadCount()
+	{
+		int defaultThreads = Math.min(MAX_NIO_THREADS, Runtime.getRuntime().availableProcessors());
+		return Math.max(1, getInt("hcs.nio.threads", defaultThreads));
+	}
+
+	/**
+	 * Kind of thread the thread engine runs each client on, platform or virtual.
+	 */
+	static String getClientThreadMode()
+	{
+		return System.getProperty("hcs.client.threads", CLIENT_THREADS_PLATFORM).trim().toLowerCase();
+	}
+
+	/**
+	 * Bridge command that returns both door pins in one response, for sketches that support
+	 * it. Null, the default, reads the doors with separate concurrent readL and readR requests.
+	 */
+	static String getYunBatchReadCommand()
+	{
+		String command = System.getProperty("hcs.yun.batchread");
+		return command == null || command.trim().isEmpty() ? null : command.trim();
+	}
+
+	/**
+	 * Base URL of the Yun bridge REST API; commands are appended to it.
+	 */
+	static String getYunUrl()
+	{
+		String url = System.getProperty("hcs.yun.url", DEFAULT_YUN_URL).trim();
+		return url.endsWith("/") ? url : url + "/";
+	}
+
+	/**
+	 * False runs the server without polling the Yun, the doors are reported closed.
+	 */
+	static boolean isYunConnected()
+	{
+		return getBoolean("hcs.yun.connected", true);
+	}
+
+	/**
+	 * True starts a YunSimulator inside the server and uses it in place of the Yun.
+	 */
+	static boolean isYunSimulated()
+	{
+		return getBoolean("hcs.yun.simulate", false);
+	}
+
+	static int getYunSimPort()
+	{
+		return getInt("hcs.yun.sim.port", 0);
+	}
+
+	static int getYunSimLatency()
+	{
+		return Math.max(0, getInt("hcs.yun.sim.latency", 0));
+	}
+
+	static int getYunSimJitter()
+	{
+		return Math.max(0, getInt("hcs.yun.sim.jitter", 0));
+	}
+
+	/**
+	 * Fraction of simulator requests, 0.0 to 1.0, answered with an HTTP error.
+	 */
+	static double getYunSimFailureRate()
+	{
+		return Math.min(1.0, Math.max(0.0, getDouble("hcs.yun.sim.failurerate", 0.0)));
+	}
+
+	static int getYunSimTravelTime()
+	{
+		return Math.max(0, getInt("hcs.yun.sim.travel", DEFAULT_YUN_SIM_TRAVEL_TIME));
+	}
+
+	/**
+	 * Longest a GET<changes><waitMillis> long poll is held before NO_CHANGES is sent.
+	 */
+	static long getMaxChangesWait()
+	{
+		return Math.max(0, getInt("hcs.changes.maxwait", DEFAULT_MAX_CHANGES_WAIT));
+	}
+
+	/**
+	 * Most lines queued for a client waiting for pushes before the overflow policy applies.
+	 */
+	static int getPushQueueCapacity()
+	{
+		return Math.max(1, getInt("hcs.push.capacity", DEFAULT_PUSH_QUEUE_CAPACITY));
+	}
+
+	/**
+	 * Milliseconds without a command after which a logged in client's heart beat is lost,
+	 * and a client that hasn't logged in is disconnected. Set in seconds.
+	 */
+	static long getHeartbeatLostLimit()
+	{
+		return 1000L * Math.max(1, getInt("hcs.heartbeat.lost", DEFAULT_HEARTBEAT_LOST_LIMIT));
+	}
+
+	/**
+	 * Milliseconds without a command after which a client's heart beat is terminal. Set in
+	 * seconds, at least the lost limit.
+	 */
+	static long getHeartbeatTerminalLimit()
+	{
+		return Math.max(getHeartbeatLostLimit(),
+						1000L * getInt("hcs.heartbeat.terminal", DEFAULT_HEARTBEAT_TERMINAL_LIMIT));
+	}
+
+	/**
+	 * Milliseconds without a command after which a client with a terminal heart beat is
+	 * disconnected. Set in seconds, at least the terminal limit.
+	 */
+	static long getHeartbeatKillLimit()
+	{
+		return Math.max(getHeartbeatTerminalLimit(),
+						1000L * getInt("hcs.heartbeat.kill", DEFAULT_HEARTBEAT_KILL_LIMIT));
+	}
+
+	/**
+	 * Milliseconds a logged in client can be quiet before the server sends it a PING, or 0,
+	 * the default, to never send one. Set in seconds.
+	 */
+	static long getPingIdleLimit()
+	{
+		return 1000L * Math.max(0, getInt("hcs.ping.idle", 0));
+	}
+
+	/**
+	 * Milliseconds a client has to answer a PING before it is disconnected. Set in seconds.
+	 */
+	static long getPingTimeout()
+	{
+		return 1000L * Math.max(1, getInt("hcs.ping.timeout", DEFAULT_PING_TIMEOUT));
+	}
+
+	/**
+	 * True turns on TCP keepalive for client sockets. hcs.socket.keepidle,
+	 * hcs.socket.keepinterval and hcs.socket.keepcount tune it where the platform allows,
+	 * 0 leaves the system default.
+	 */
+	static boolean isSocketKeepAlive()
+	{
+		return getBoolean("hcs.socket.keepalive", false);
+	}
+
+	static int getSocketKeepIdle()
+	{
+		return Math.max(0, getInt("hcs.socket.keepidle", 0));
+	}
+
+	static int getSocketKeepInterval()
+	{
+		return Math.max(0, getInt("hcs.socket.keepinterval", 0));
+	}
+
+	static int getSocketKeepCount()
+	{
+		return Math.max(0, getInt("hcs.socket.keepcount", 0));
+	}
+
+	/**
+	 * Most lines the server window's log pane keeps, older lines are trimmed.
+	 */
+	static int getLogRetention()
+	{
+		return Math.max(1, getInt("hcs.log.retention", DEFAULT_LOG_RETENTION));
+	}
+
+	/**
+	 * File the server log is written to, or null if hcs.log.file is set empty to turn the
+	 * file log off.
+	 */
+	static String getLogFile()
+	{
+		String file = System.getProperty("hcs.log.file", DEFAULT_LOG_FILE).trim();
+		return file.isEmpty() ? null : file;
+	}
+
+	/**
+	 * Size in bytes at which the log file is rotated.
+	 */
+	static long getLogFileMaxSize()
+	{
+		return Math.max(1024, getInt("hcs.log.maxsize", DEFAULT_LOG_FILE_MAX_SIZE));
+	}
+
+	/**
+	 * Number of rotated log files kept.
+	 */
+	static int getLogFileCount()
+	{
+		return Math.max(1, getInt("hcs.log.files", DEFAULT_LOG_FILE_COUNT));
+	}
+
+	/**
+	 * When the log file is rotated regardless of size: daily, hourly or none.
+	 */
+	static FileLogger.RotationPeriod getLogRotation()
+	{
+		String period = System.getProperty("hcs.log.rotate", "daily").trim().toUpperCase();
+		try
+		{
+			return FileLogger.RotationPeriod.valueOf(period);
+		}
+		catch (IllegalArgumentException iae)
+		{
+			return FileLogger.RotationPeriod.DAILY;
+		}
+	}
+
+	/**
+	 * True registers the server's MXBeans with the platform MBean server.
+	 */
+	static boolean isJmxEnabled()
+	{
+		return getBoolean("hcs.jmx", true);
+	}
+
+	/**
+	 * What to do when a client's push queue is full: drop_oldest, resync or disconnect.
+	 */
+	static PushQueue.OverflowPolicy getPushOverflowPolicy()
+	{
+		String policy = System.getProperty("hcs.push.overflow", "drop_oldest").trim().toUpperCase();
+		try
+		{
+			return PushQueue.OverflowPolicy.valueOf(policy);
+		}
+		catch (IllegalArgumentException iae)
+		{
+			return PushQueue.OverflowPolicy.DROP_OLDEST;
+		}
+	}
+
+	static int getInt(String property, int defaultValue)
+	{
+		String value = System.getProperty(property);
+		if(value == null)
+			return defaultValue;
+
+		try
+		{
+			return Integer.parseInt(value.trim());
+		}
+		catch (NumberFormatException nfe)
+		{
+			return defaultValue;
+		}
+	}
+
+	static double getDouble(String property, double defaultValue)
+	{
+		String value = System.getProperty(property);
+		if(value == null)
+			return defaultValue;
+
+		try
+		{
+			return Double.parseDouble(value.trim());
+		}
+		catch (NumberFormatException nfe)
+		{
+			return defaultValue;
+		}
+	}
+
+	static boolean getBoolean(String property, boolean defaultValue)
+	{
+		String value = System.getProperty(property);
+		return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+	}
+}
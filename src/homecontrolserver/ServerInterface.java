@@ -0,0 +1,17 @@
+package homecontrolserver;
+
+/*************************************************************************************
+ * The server loop that accepts client connections. Implemented by ServerLoop, which runs
+ * each client on its own thread, and NioServerLoop, which multiplexes clients over a few
+ * selector threads. HomeControlServer picks one at start up from ServerConfig.
+ ************************************************************************************/
+public interface ServerInterface
+{
+	void start();
+
+	void stopServer();
+
+	void join() throws InterruptedException;
+
+	boolean terminateServer();
+}
@@ -4,23 +4,25 @@ import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
 
-public class ServerLoop extends Thread 
+public class ServerLoop extends Thread implements ServerInterface, ServerLoopMXBean
 {
 	private static final int SERVER_TIMEOUT = 3000;	//three seconds
 	private ClientManager clientMgr;
 	private ServerSocket listener;
+	private RateMeter acceptMeter;
 	
-	private boolean bRunServer;
+	private volatile boolean bRunServer;
 	
 	ServerLoop(ClientManager cmgr)
 	{
 		clientMgr = cmgr;
 		bRunServer = true;
+		acceptMeter = new RateMeter();
 		
 		//Create the client listener socket
 		try
 		{
-			listener = new ServerSocket(8901);
+			listener = new ServerSocket(ServerConfig.getServerPort());
 			listener.setSoTimeout(SERVER_TIMEOUT);
 		} 
 		catch (IOException e)
@@ -43,7 +45,18 @@ public class ServerLoop extends Thread
         	{
     			//Server loops listening for clients to connect
     			Socket clientSocket = listener.accept();
-    			clientMgr.addClient(clientSocket);
+    			acceptMeter.mark();
+    			try
+    			{
+    				ClientSocketOptions.apply(clientSocket);
+    				clientMgr.addClient(clientSocket);
+    			}
+    			catch (IOException e)
+    			{
+    				//the client was never added, so nothing else will close its socket
+    				clientMgr.addLogMessage("ServerLoop: Add client IOException: " + e.getMessage());
+    				closeSocket(clientSocket);
+    			}
         	}
     		catch(java.io.InterruptedIOException e)
     		{
@@ -58,12 +71,38 @@ public class ServerLoop extends Thread
     	}
     }
     
-    void stopServer()
+    private void closeSocket(Socket socket)
+    {
+    	try
+    	{
+    		socket.close();
+    	}
+    	catch (IOException e)
+    	{
+    		clientMgr.addLogMessage("ServerLoop: Close socket IOException: " + e.getMessage());
+    	}
+    }
+    
+    @Override
+    public String getEngine() { return ServerConfig.ENGINE_THREAD; }
+    
+    @Override
+    public boolean isRunning() { return bRunServer && isAlive(); }
+    
+    @Override
+    public long getAcceptedCount() { return acceptMeter.getCount(); }
+    
+    @Override
+    public double getAcceptRate() { return acceptMeter.getRatePerSecond(); }
+    
+    @Override
+    public void stopServer()
     {
     	bRunServer = false;
     }
     
-    boolean terminateServer()
+    @Override
+    public boolean terminateServer()
     {
     	boolean bServerSocketClosed = false;
     	try 
@@ -0,0 +1,22 @@
+package homecontrolserver;
+
+/*************************************************************************************
+ * JMX view of the running server loop, ServerLoop or NioServerLoop, registered as
+ * homecontrolserver:type=ServerLoop when the loop is created.
+ ************************************************************************************/
+public interface ServerLoopMXBean
+{
+	/**
+	 * The engine, thread or nio.
+	 */
+	String getEngine();
+
+	boolean isRunning();
+
+	long getAcceptedCount();
+
+	/**
+	 * Connections accepted per second, averaged over the last minute.
+	 */
+	double getAcceptRate();
+}
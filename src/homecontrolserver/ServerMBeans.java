@@ -0,0 +1,41 @@
+package homecontrolserver;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/*************************************************************************************
+ * Registers the server's MXBeans with the platform MBean server, so jconsole, VisualVM or
+ * any JMX client attached to the JVM can watch the server and use its operations. Each
+ * bean is named homecontrolserver:type=<type>; registering a type again replaces the
+ * earlier bean, as when the server loop is stopped and started. Set hcs.jmx=false to leave
+ * the beans unregistered.
+ ************************************************************************************/
+public class ServerMBeans
+{
+	static final String DOMAIN = "homecontrolserver";
+
+	private ServerMBeans() {}
+
+	static void register(String type, Object mbean)
+	{
+		if(!ServerConfig.isJmxEnabled())
+			return;
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try
+		{
+			ObjectName name = new ObjectName(DOMAIN, "type", type);
+			if(server.isRegistered(name))
+				server.unregisterMBean(name);
+			server.registerMBean(mbean, name);
+		}
+		catch (JMException e)
+		{
+			ClientManager.getStatusSink().addLogMessage(String.format("JMX registration of %s failed, %s",
+																		type, e.getMessage()));
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package homecontrolserver;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/*************************************************************************************
+ * The server's metrics: a latency histogram for each client command and each kind of Yun
+ * request, and counters for events worth counting, such as unrecognized commands. Callers
+ * look up their histogram or counter once, when they're set up, and keep it, so recording
+ * is just the histogram's or counter's own lock-free increment.
+ *
+ * getStatsJson() is the snapshot a client gets with GET<stats>.
+ ************************************************************************************/
+public class ServerMetrics
+{
+	static final String UNRECOGNIZED_COMMANDS = "commands.unrecognized";
+	static final String YUN_REJECTED = "yun.rejected";	//door commands refused while the breaker was open
+
+	private static ServerMetrics instance = null;
+
+	private long startTime;
+	private ConcurrentMap<String, LatencyHistogram> commandTimers;
+	private ConcurrentMap<String, LatencyHistogram> deviceTimers;
+	private ConcurrentMap<String, LongAdder> counters;
+
+	private ServerMetrics()
+	{
+		startTime = System.currentTimeMillis();
+		commandTimers = new ConcurrentSkipListMap<String, LatencyHistogram>();
+		deviceTimers = new ConcurrentSkipListMap<String, LatencyHistogram>();
+		counters = new ConcurrentSkipListMap<String, LongAdder>();
+	}
+
+	public static synchronized ServerMetrics getInstance()
+	{
+		if(instance == null)
+			instance = new ServerMetrics();
+
+		return instance;
+	}
+
+	/**
+	 * Returns the histogram of a client command's response times, creating it the first
+	 * time. Text and binary forms of the same command share one by using the same name.
+	 */
+	LatencyHistogram getCommandTimer(String command)
+	{
+		return getOrCreate(commandTimers, command);
+	}
+
+	/**
+	 * Returns the histogram of a kind of Yun request's round trip times, creating it the
+	 * first time.
+	 */
+	LatencyHistogram getDeviceTimer(String request)
+	{
+		return getOrCreate(deviceTimers, request);
+	}
+
+	LongAdder getCounter(String name)
+	{
+		LongAdder counter = counters.get(name);
+		if(counter == null)
+		{
+			LongAdder created = new LongAdder();
+			counter = counters.putIfAbsent(name, created);
+			if(counter == null)
+				counter = created;
+		}
+
+		return counter;
+	}
+
+	private static LatencyHistogram getOrCreate(ConcurrentMap<String, LatencyHistogram> map, String name)
+	{
+		LatencyHistogram histogram = map.get(name);
+		if(histogram == null)
+		{
+			LatencyHistogram created = new LatencyHistogram(name);
+			histogram = map.putIfAbsent(name, created);
+			if(histogram == null)
+				histogram = created;
+		}
+
+		return histogram;
+	}
+
+	long getUptimeMillis() { return System.currentTimeMillis() - startTime; }
+
+	/**
+	 * Returns a JSON snapshot of every histogram and counter. Rates are averaged over the
+	 * server's uptime.
+	 */
+	String getStatsJson()
+	{
+		Stats stats = new Stats();
+		stats.uptimeSeconds = getUptimeMillis() / 1000;
+
+		double seconds = getUptimeMillis() / 1000.0;
+		for(LatencyHistogram h : commandTimers.values())
+			stats.commands.put(h.getName(), h.getSnapshot(seconds));
+		for(LatencyHistogram h : deviceTimers.values())
+			stats.yun.put(h.getName(), h.getSnapshot(seconds));
+		for(Map.Entry<String, LongAdder> e : counters.entrySet())
+			stats.counters.put(e.getKey(), e.getValue().sum());
+
+		return JsonCodec.getReportGson().toJson(stats);
+	}
+
+	private static class Stats
+	{
+		long uptimeSeconds;
+		Map<String, LatencyHistogram.Snapshot> commands = new TreeMap<String, LatencyHistogram.Snapshot>();
+		Map<String, LatencyHistogram.Snapshot> yun = new TreeMap<String, LatencyHistogram.Snapshot>();
+		Map<String, Long> counters = new TreeMap<String, Long>();
+	}
+}
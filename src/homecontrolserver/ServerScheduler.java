@@ -0,0 +1,176 @@
+package homecontrolserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/*************************************************************************************
+ * Runs the server's periodic background work, such as garage door polling and client
+ * heart beat checks, on its own threads instead of the Swing event dispatch thread. A slow
+ * Arduino Yun therefore can't freeze the UI, and two scheduler threads keep a blocked door
+ * poll from delaying the heart beat check. Each periodic task measures its tick lag, the
+ * time between when it should have started and when it actually did, and a warning is
+ * logged when the lag exceeds LAG_WARNING_LIMIT.
+ ************************************************************************************/
+public class ServerScheduler
+{
+	private static final int SCHEDULER_THREADS = 2;
+	private static final long LAG_WARNING_LIMIT = 1000;	//one second
+
+	private static ServerScheduler instance = null;
+
+	private ScheduledThreadPoolExecutor executor;
+	private List<PeriodicTask> taskList;
+
+	private ServerScheduler()
+	{
+		executor = new ScheduledThreadPoolExecutor(SCHEDULER_THREADS, new SchedulerThreadFactory());
+		executor.setRemoveOnCancelPolicy(true);
+		taskList = new CopyOnWriteArrayList<PeriodicTask>();
+	}
+
+	public static synchronized ServerScheduler getInstance()
+	{
+		if(instance == null)
+			instance = new ServerScheduler();
+
+		return instance;
+	}
+
+	/**
+	 * Runs the task repeatedly with the given delay between the end of one run and the start
+	 * of the next. Exceptions thrown by the task are logged and don't cancel the schedule.
+	 */
+	PeriodicTask scheduleWithFixedDelay(String name, Runnable task, long initialDelayMillis, long delayMillis)
+	{
+		PeriodicTask pt = new PeriodicTask(name, task, initialDelayMillis, delayMillis);
+		pt.future = executor.scheduleWithFixedDelay(pt, initialDelayMillis, delayMillis, TimeUnit.MILLISECONDS);
+		taskList.add(pt);
+		return pt;
+	}
+
+	/**
+	 * Runs the task once after the delay.
+	 */
+	ScheduledFuture<?> schedule(final String name, final Runnable task, long delayMillis)
+	{
+		return executor.schedule(new Runnable() {
+			public void run()
+			{
+				runSafely(name, task);
+			}
+		}, delayMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Returns the scheduler's threads as an Executor, for the short steps that continue an
+	 * asynchronous request once it completes, such as handling a Yun response.
+	 */
+	Executor getExecutor() { return executor; }
+
+	List<PeriodicTask> getPeriodicTasks() { return new ArrayList<PeriodicTask>(taskList); }
+
+	/**
+	 * Returns the largest lag seen by any periodic task, in milliseconds.
+	 */
+	long getMaxTickLag()
+	{
+		long max = 0;
+		for(PeriodicTask pt : taskList)
+			max = Math.max(max, pt.getMaxLag());
+		return max;
+	}
+
+	private static void runSafely(String name, Runnable task)
+	{
+		try
+		{
+			task.run();
+		}
+		catch (RuntimeException e)
+		{
+			ClientManager.getInstance().addLogMessage(String.format("Scheduled task %s failed: %s", name, e.toString()));
+		}
+	}
+
+	/*************************************************************************************
+	 * A fixed delay task that records how late each of its runs started.
+	 ************************************************************************************/
+	class PeriodicTask implements Runnable
+	{
+		private String name;
+		private Runnable task;
+		private long delayMillis;
+		private ScheduledFuture<?> future;
+
+		private volatile long nextExpectedRun;
+		private volatile long runCount;
+		private volatile long lastLag;
+		private volatile long maxLag;
+		private volatile long lastRunDuration;
+
+		PeriodicTask(String name, Runnable task, long initialDelayMillis, long delayMillis)
+		{
+			this.name = name;
+			this.task = task;
+			this.delayMillis = delayMillis;
+			nextExpectedRun = System.currentTimeMillis() + initialDelayMillis;
+			runCount = 0;
+			lastLag = 0;
+			maxLag = 0;
+			lastRunDuration = 0;
+		}
+
+		String getName() { return name; }
+		long getDelay() { return delayMillis; }
+		long getRunCount() { return runCount; }
+		long getLastLag() { return lastLag; }
+		long getMaxLag() { return maxLag; }
+		long getLastRunDuration() { return lastRunDuration; }
+
+		void cancel()
+		{
+			future.cancel(false);
+			taskList.remove(this);
+		}
+
+		@Override
+		public void run()
+		{
+			long start = System.currentTimeMillis();
+			long lag = Math.max(0, start - nextExpectedRun);
+			lastLag = lag;
+			if(lag > maxLag)
+				maxLag = lag;
+
+			if(lag > LAG_WARNING_LIMIT)
+				ClientManager.getInstance().addLogMessage(String.format("Scheduled task %s started %d ms late",
+																		name, lag));
+
+			runSafely(name, task);
+
+			long end = System.currentTimeMillis();
+			lastRunDuration = end - start;
+			nextExpectedRun = end + delayMillis;
+			runCount++;
+		}
+	}
+
+	private static class SchedulerThreadFactory implements ThreadFactory
+	{
+		private int count = 0;
+
+		@Override
+		public synchronized Thread newThread(Runnable r)
+		{
+			Thread t = new Thread(r, "ServerScheduler-" + count++);
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
@@ -0,0 +1,20 @@
+package homecontrolserver;
+
+/*************************************************************************************
+ * Receives the server's status updates: log messages, the connected client table and the
+ * garage door stop lights. ServerUI implements it for the Swing window; ConsoleStatusSink
+ * implements it for headless operation. ClientManager and GarageDoorDB only talk to the
+ * sink, never to Swing directly.
+ ************************************************************************************/
+public interface ServerStatusSink
+{
+	void addLogMessage(String mssg);
+	
+	/**
+	 * A client connected, disconnected or changed in a way shown in the client table.
+	 * clientCount is the number of clients connected afterwards.
+	 */
+	void clientChanged(Client c, int clientCount);
+	
+	void setStoplight(int door, int pos);	//closed-green, 1-moving, 2-open, 3-unknown
+}
@@ -4,9 +4,8 @@ import java.awt.BorderLayout;
 import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.FlowLayout;
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.Calendar;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 
 import javax.swing.BorderFactory;
 import javax.swing.BoxLayout;
@@ -20,16 +19,18 @@ import javax.swing.JTable;
 import javax.swing.JTextArea;
 import javax.swing.ListSelectionModel;
 import javax.swing.SwingConstants;
+import javax.swing.SwingUtilities;
 import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
 import javax.swing.table.DefaultTableCellRenderer;
-import javax.swing.table.DefaultTableModel;
 import javax.swing.table.JTableHeader;
+import javax.swing.Timer;
 import javax.swing.text.DefaultCaret;
+import javax.swing.text.Element;
 import javax.swing.text.SimpleAttributeSet;
 import javax.swing.text.StyleConstants;
 
-public class ServerUI extends JPanel implements ListSelectionListener
+public class ServerUI extends JPanel implements ListSelectionListener, ServerStatusSink
 {
 	/**
 	 * 
@@ -38,32 +39,36 @@ public class ServerUI extends JPanel implements ListSelectionListener
 
 	private static final int NUM_ROWS_TO_DISPLAY = 8;
 	private static final int LOG_TEXT_FONT_SIZE = 13;
+	private static final int LOG_BUFFER_CAPACITY = 4096;	//lines logged between two flushes, at most
+	private static final int LOG_FLUSH_RATE = 200;	//milliseconds between log pane updates
 	
 	private static ServerUI instance = null;	//Only one UI
 	private transient static ImageIcon imageIcons[];
 	public JButton btnStartServer, btnStopServer, btnKillClient;
 	private JTextArea logTA;
+	private transient LogRingBuffer logBuffer;	//lines waiting to be appended to logTA
+	private transient TimestampCache logTimestamp;
+	private int logRetention;	//most lines logTA keeps
+	private transient Timer logFlushTimer;
 //	private StyledDocument logDoc;	//document that holds log text
 	private JLabel lblNumClients;
-	private static JRadioButton leftDoorStoplight, rightDoorStoplight;
+	private JRadioButton leftDoorStoplight, rightDoorStoplight;
 //	private ONCTable clientTable;
 	private JTable clientTable;
-	private DefaultTableModel clientTableModel;
+	private ClientTableModel clientTableModel;
 	private boolean bClientTableChanging;
 	
-	private ArrayList<Client> clientTableList;
-	
 //	private static String[] columnToolTips = {"ID", "First Name", "Last Name", 
 //		  										"Permission", "Client Status", "Heart Beat",
 //		  										"Database Year Client is Connected To",
 //		  										"Time Logged In" };
 
 	private static String[] columns = {"ID", "First Name", "Last Name", 
-		  								"Perm", "State", "HB", "Year", "Ver", "Time Stamp" };
+		  								"Perm", "State", "HB", "Year", "Ver", "Time Stamp", "Q" };
 
-	private static int[] colWidths = {40, 80, 80, 80, 80, 28, 40, 52, 140};
+	private static int[] colWidths = {40, 80, 80, 80, 80, 28, 40, 52, 140, 32};
 
-	private static int [] center_cols = {0, 3, 5};
+	private static int [] center_cols = {0, 3, 5, 9};
 	
 	public static ServerUI getInstance()
 	{
@@ -110,16 +115,15 @@ public class ServerUI extends JPanel implements ListSelectionListener
 //    	clientTable = new ONCTable(columnToolTips, new Color(240,248,255));
     	clientTable = new JTable();
 
-    	//Set up the table model. Cells are not editable
-    	clientTableModel = new DefaultTableModel(columns, 0) {
-    		private static final long serialVersionUID = 1L;
-    				
-    		@Override
-    		//All cells are locked from being changed by user
-    		public boolean isCellEditable(int row, int column) {return false;}
-    	};
-    	
-    	clientTableList = new ArrayList<Client>();	//List holds references of clients show in table
+    	//Set up the table model. Cells are not editable. Client changes are applied to it in
+    	//frames on the EDT, after each frame the client count and kill button are updated
+    	clientTableModel = new ClientTableModel(columns);
+    	clientTableModel.setFrameListener(new ActionListener() {
+    		public void actionPerformed(ActionEvent e)
+    		{
+    			clientTableFrameApplied();
+    		}
+    	});
 
     	//Set the table model, select ability to select multiple rows and add a listener to 
     	//check if the user has selected a row. 
@@ -195,6 +199,19 @@ public class ServerUI extends JPanel implements ListSelectionListener
   	   	
         DefaultCaret caret = (DefaultCaret) logTA.getCaret();
         caret.setUpdatePolicy(DefaultCaret.ALWAYS_UPDATE);
+        
+        //any thread can log without waiting for the EDT, the lines are appended in batches
+        //and the oldest dropped past the retention limit, set with -Dhcs.log.retention
+        logBuffer = new LogRingBuffer(LOG_BUFFER_CAPACITY);
+        logTimestamp = new TimestampCache("MM/dd/yy H:mm:ss");
+        logRetention = ServerConfig.getLogRetention();
+        logFlushTimer = new Timer(LOG_FLUSH_RATE, new ActionListener() {
+        	public void actionPerformed(ActionEvent e)
+        	{
+        		flushLog();
+        	}
+        });
+        logFlushTimer.start();
   	   	
 	    //Create the ODB Wish List scroll pane and add the Wish List text pane to it.
         JScrollPane logScrollPane = new JScrollPane(logTA);
@@ -207,6 +224,14 @@ public class ServerUI extends JPanel implements ListSelectionListener
         btnKillClient = new JButton("Kill Client");
         btnKillClient.setVisible(false);
         btnKillClient.setEnabled(false);
+        btnKillClient.addActionListener(new ActionListener() {
+        	public void actionPerformed(ActionEvent e)
+        	{
+        		Client c = getClientTableSelection();
+    			if(c != null)
+    				ClientManager.getInstance().killClient(c);
+        	}
+        });
       
         btnStartServer = new JButton("Start Server");
         btnStartServer.setVisible(false);
@@ -247,51 +272,72 @@ public class ServerUI extends JPanel implements ListSelectionListener
 		
 	}
 	
-	void displayClientTable(ArrayList<Client> cAL)
+	@Override
+	public void clientChanged(Client c, int clientCount)
 	{
-		bClientTableChanging = true;
-		
-		clientTableList.clear();
-		
-		while (clientTableModel.getRowCount() > 0)	//Clear the current table
-			clientTableModel.removeRow(0);
-		
-		for(Client ci:cAL)	//Build the new table
-		{
-			clientTableList.add(ci);
-			clientTableModel.addRow(ci.getClientTableRow());
-		}
-		
-		bClientTableChanging = false;
-		
-		btnKillClient.setVisible(cAL.size() > 0);
-		btnKillClient.setEnabled(false);
+		//coalesced by the table model and applied on the EDT
+		clientTableModel.clientChanged(c);
+	}
+	
+	private void clientTableFrameApplied()
+	{
+		int clientCount = clientTableModel.getRowCount();
+		btnKillClient.setVisible(clientCount > 0);
+		btnKillClient.setEnabled(clientTable.getSelectedRowCount() > 0);
 		
-		lblNumClients.setText("Clients Connected: " + Integer.toString(cAL.size()));
+		lblNumClients.setText("Clients Connected: " + Integer.toString(clientCount));
 	}
 	
 	//returns a reference to the client that is selected in the client table
 	Client getClientTableSelection()
 	{
 		if(clientTable.getSelectedRow() != -1)	//make sure row is selected
-			return clientTableList.get(clientTable.getSelectedRow());
+			return clientTableModel.getClientAt(clientTable.getSelectedRow());
 			
 		else
 			return null;
 	}
 	
-	void addLogMessage(String mssg)
+	@Override
+	public void addLogMessage(String mssg)
+	{
+		String line = logTimestamp.format(System.currentTimeMillis());
+		
+		logBuffer.add(line + ": " + mssg + "\n");
+	}
+	
+	/**
+	 * Appends the lines logged since the last flush in one batch, then trims the oldest
+	 * lines beyond the retention limit. Runs on the EDT.
+	 */
+	private void flushLog()
 	{
-		Calendar timestamp = Calendar.getInstance();
+		StringBuilder batch = new StringBuilder();
+		if(logBuffer.drainTo(batch) == 0)
+			return;
 		
-		String line = new SimpleDateFormat("MM/dd/yy H:mm:ss").format(timestamp.getTime());
+		logTA.append(batch.toString());
+		
+		//every line ends with a newline, the last element is the empty line after it
+		Element root = logTA.getDocument().getDefaultRootElement();
+		int nTrim = root.getElementCount() - 1 - logRetention;
+		if(nTrim > 0)
+			logTA.replaceRange("", 0, root.getElement(nTrim - 1).getEndOffset());
 		
-		logTA.append(line + ": " + mssg + "\n");
 		logTA.setCaretPosition(logTA.getDocument().getLength());
 	}
 	
-	static void setStoplight(int door, int pos)	//closed-green, 1-moving, 2-open, 3-unknown
+	@Override
+	public void setStoplight(final int door, final int pos)	//closed-green, 1-moving, 2-open, 3-unknown
 	{
+		if(!SwingUtilities.isEventDispatchThread())
+		{
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() { setStoplight(door, pos); }
+			});
+			return;
+		}
+		
 		if(pos >= 0 && pos < 4)
 		{
 			if(door == 0)
@@ -301,6 +347,7 @@ public class ServerUI extends JPanel implements ListSelectionListener
 		}	
 	}
 	
+	
 	ImageIcon getIcon(int index) { return imageIcons[index]; }
 	
 	 /** Returns an ImageIcon, or null if the path was invalid. */
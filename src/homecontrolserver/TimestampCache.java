@@ -0,0 +1,47 @@
+package homecontrolserver;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/*************************************************************************************
+ * Formats log timestamps with a seconds resolution pattern, formatting each second only
+ * once. Log lines arrive in bursts within the same second, so most calls just return the
+ * cached text instead of allocating a Calendar and a SimpleDateFormat. Safe to use from
+ * any thread.
+ ************************************************************************************/
+public class TimestampCache
+{
+	private String pattern;
+	private volatile Formatted last;	//replaced as a whole, so readers see a consistent pair
+
+	TimestampCache(String pattern)
+	{
+		this.pattern = pattern;
+		last = new Formatted(Long.MIN_VALUE, "");
+	}
+
+	String format(long millis)
+	{
+		long second = Math.floorDiv(millis, 1000);
+		Formatted f = last;
+		if(f.second != second)
+		{
+			f = new Formatted(second, new SimpleDateFormat(pattern).format(new Date(second * 1000)));
+			last = f;
+		}
+
+		return f.text;
+	}
+
+	private static class Formatted
+	{
+		private final long second;
+		private final String text;
+
+		Formatted(long second, String text)
+		{
+			this.second = second;
+			this.text = text;
+		}
+	}
+}
@@ -0,0 +1,191 @@
+package homecontrolserver;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/*************************************************************************************
+ * Asynchronous client for the Arduino Yun bridge REST API (http://<yun>/arduino/<command>),
+ * or for anything serving the same API at another base URL, such as the YunSimulator.
+ * One HttpClient is shared for the life of the server so HTTP/1.1 connections to the Yun
+ * are kept alive and reused between polls. The Yun's address is resolved once and cached,
+ * avoiding an mDNS lookup of arduino.local on every request; the cached address is dropped
+ * when a request fails so a Yun that changes address is found again.
+ *
+ * Each kind of work has its own threads, so one can't hold up another: a lookup runs on
+ * the resolver thread, the HttpClient has a small pool of its own, and handling responses
+ * runs on the ServerScheduler's threads. Every request has a
+ * connect and a response timeout, and results are returned as CompletableFutures so the
+ * caller never blocks on the network. A CircuitBreaker fails requests immediately while
+ * the Yun is down rather than letting each one wait out the timeouts.
+ ************************************************************************************/
+public class YunBridge
+{
+	private static final int CONNECT_TIMEOUT = 1000 * 2;	//two seconds
+	private static final int REQUEST_TIMEOUT = 1000 * 3;	//three seconds
+	private static final long ADDRESS_CACHE_TIME = 1000 * 60 * 10;	//ten minutes
+	private static final int HTTP_THREADS = 2;
+
+	private URI baseUri;	//the bridge URL, commands are appended to its path
+	private String host;
+	private HttpClient httpClient;
+	private ExecutorService resolverExecutor;	//address lookups, which block
+	private ExecutorService httpExecutor;
+	private Executor responseExecutor;
+	private CircuitBreaker circuitBreaker;
+
+	private volatile String cachedAddress;	//host part of the request URI, null if not resolved
+	private volatile long addressResolvedTime;
+
+	YunBridge(String baseUrl)
+	{
+		baseUri = URI.create(baseUrl);
+		host = baseUri.getHost();
+		cachedAddress = null;
+		addressResolvedTime = 0;
+		circuitBreaker = new CircuitBreaker("Arduino Yun");
+
+		resolverExecutor = Executors.newSingleThreadExecutor(new BridgeThreadFactory("YunResolver"));
+		httpExecutor = Executors.newFixedThreadPool(HTTP_THREADS, new BridgeThreadFactory("YunBridge"));
+		responseExecutor = ServerScheduler.getInstance().getExecutor();
+		httpClient = HttpClient.newBuilder()
+						.version(HttpClient.Version.HTTP_1_1)
+						.connectTimeout(Duration.ofMillis(CONNECT_TIMEOUT))
+						.executor(httpExecutor)
+						.build();
+	}
+
+	String getHost() { return host; }
+	String getBaseUrl() { return baseUri.toString(); }
+	CircuitBreaker getCircuitBreaker() { return circuitBreaker; }
+
+	/**
+	 * Sends a bridge command, such as readL or toggleR, and completes with the response body.
+	 * Line breaks are removed from the body, matching how the Yun's responses were always
+	 * read. Completes exceptionally on a timeout, a network error or a non 200 response, and
+	 * immediately with a CircuitOpenException while the circuit breaker is open.
+	 */
+	CompletableFuture<String> sendCommand(final String command)
+	{
+		try
+		{
+			circuitBreaker.checkRequestAllowed();
+		}
+		catch (CircuitBreaker.CircuitOpenException coe)
+		{
+			CompletableFuture<String> rejected = new CompletableFuture<String>();
+			rejected.completeExceptionally(coe);
+			return rejected;
+		}
+
+		return getAddress()
+				.thenComposeAsync(new Function<String, CompletionStage<HttpResponse<String>>>() {
+					public CompletionStage<HttpResponse<String>> apply(String address)
+					{
+						HttpRequest request = HttpRequest.newBuilder()
+												.uri(URI.create(baseUri.getScheme() + "://" + address +
+														(baseUri.getPort() == -1 ? "" : ":" + baseUri.getPort()) +
+														baseUri.getRawPath() + command))
+												.timeout(Duration.ofMillis(REQUEST_TIMEOUT))
+												.GET()
+												.build();
+
+						return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString());
+					}
+				}, responseExecutor)
+				.handleAsync(new BiFunction<HttpResponse<String>, Throwable, String>() {
+					public String apply(HttpResponse<String> response, Throwable t)
+					{
+						if(t != null || response.statusCode() != 200)
+							circuitBreaker.recordFailure();
+						else
+							circuitBreaker.recordSuccess();
+
+						if(t != null)
+						{
+							cachedAddress = null;	//resolve again on the next request
+							throw t instanceof CompletionException ? (CompletionException) t : new CompletionException(t);
+						}
+
+						if(response.statusCode() != 200)
+							throw new CompletionException(new IOException(String.format("Yun %s returned HTTP %d",
+																			command, response.statusCode())));
+
+						return response.body().replace("\r", "").replace("\n", "");
+					}
+				}, responseExecutor);
+	}
+
+	/**
+	 * Completes with the Yun's address formatted for use in a URI. A cached address is
+	 * returned at once, otherwise it's looked up on the resolver thread.
+	 */
+	private CompletableFuture<String> getAddress()
+	{
+		String address = cachedAddress;
+		if(address != null && System.currentTimeMillis() - addressResolvedTime < ADDRESS_CACHE_TIME)
+			return CompletableFuture.completedFuture(address);
+
+		return CompletableFuture.supplyAsync(new Supplier<String>() {
+					public String get() { return resolveAddress(); }
+				}, resolverExecutor);
+	}
+
+	/**
+	 * Looks up the Yun's address and caches it. Blocks, so it's only run on the resolver
+	 * thread.
+	 */
+	private String resolveAddress()
+	{
+		String address;
+		try
+		{
+			InetAddress inetAddress = InetAddress.getByName(host);
+			address = inetAddress instanceof Inet6Address ? "[" + inetAddress.getHostAddress() + "]" :
+															inetAddress.getHostAddress();
+		}
+		catch (UnknownHostException e)
+		{
+			throw new CompletionException(e);
+		}
+
+		cachedAddress = address;
+		addressResolvedTime = System.currentTimeMillis();
+		return address;
+	}
+
+	private static class BridgeThreadFactory implements ThreadFactory
+	{
+		private String name;
+		private int count = 0;
+
+		BridgeThreadFactory(String name)
+		{
+			this.name = name;
+		}
+
+		@Override
+		public synchronized Thread newThread(Runnable r)
+		{
+			Thread t = new Thread(r, name + "-" + count++);
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
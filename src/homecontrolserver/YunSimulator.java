@@ -0,0 +1,236 @@
+package homecontrolserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/*************************************************************************************
+ * Stand in for the Arduino Yun garage door controller, so the server can be run, measured
+ * and tested without the garage. Serves the same bridge REST API on localhost
+ * (http://127.0.0.1:<port>/arduino/<command>) with the same response bodies as the sketch:
+ * readL and readR answer "Pin D2 value is n" and "Pin D3 value is n", 1 if the door is open,
+ * and toggleL and toggleR answer "Pin D11 value is 0" and "Pin D12 value is 0". readLR
+ * answers both door pins, for use as the batch read command.
+ *
+ * A toggled door takes the travel time, ten seconds by default, to open or close; the door
+ * sensor only reads closed once a closing door has come all the way down. Each response can
+ * be delayed by a fixed latency plus random jitter, and a fraction of requests can be
+ * failed with HTTP 503, all set by system properties (see ServerConfig).
+ *
+ * Run it inside the server with -Dhcs.yun.simulate=true, or on its own with
+ *
+ *   java homecontrolserver.YunSimulator [port]
+ *
+ * and point the server at it with -Dhcs.yun.url=http://127.0.0.1:<port>/arduino/
+ ************************************************************************************/
+public class YunSimulator
+{
+	private static YunSimulator instance = null;
+
+	private HttpServer httpServer;
+	private SimulatedDoor leftDoor, rightDoor;
+	private int latency, jitter;
+	private double failureRate;
+	private Random random;
+	private AtomicLong requestCount, failedRequestCount;
+
+	private YunSimulator()
+	{
+		leftDoor = new SimulatedDoor(ServerConfig.getYunSimTravelTime());
+		rightDoor = new SimulatedDoor(ServerConfig.getYunSimTravelTime());
+		latency = ServerConfig.getYunSimLatency();
+		jitter = ServerConfig.getYunSimJitter();
+		failureRate = ServerConfig.getYunSimFailureRate();
+		random = new Random();
+		requestCount = new AtomicLong(0);
+		failedRequestCount = new AtomicLong(0);
+		httpServer = null;
+	}
+
+	public static synchronized YunSimulator getInstance()
+	{
+		if(instance == null)
+			instance = new YunSimulator();
+
+		return instance;
+	}
+
+	/**
+	 * Starts serving on the loopback interface. A port of 0 picks a free port; getBaseUrl()
+	 * returns the address to point the YunBridge at.
+	 */
+	synchronized void start(int port) throws IOException
+	{
+		if(httpServer != null)
+			return;
+
+		httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		httpServer.createContext("/arduino/", new BridgeHandler());
+
+		//requests are handled concurrently like the Yun's bridge, so latency isn't serialized
+		httpServer.setExecutor(Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "YunSimulator");
+				t.setDaemon(true);
+				return t;
+			}
+		}));
+		httpServer.start();
+	}
+
+	synchronized void stop()
+	{
+		if(httpServer != null)
+		{
+			httpServer.stop(0);
+			httpServer = null;
+		}
+	}
+
+	synchronized String getBaseUrl()
+	{
+		if(httpServer == null)
+			return null;
+
+		return String.format("http://127.0.0.1:%d/arduino/", httpServer.getAddress().getPort());
+	}
+
+	long getRequestCount() { return requestCount.get(); }
+	long getFailedRequestCount() { return failedRequestCount.get(); }
+
+	/**
+	 * Returns the bridge response body for a command, or null for an unknown command.
+	 */
+	String processCommand(String command)
+	{
+		long now = System.currentTimeMillis();
+
+		if(command.equals("readL"))
+			return String.format("Pin D2 value is %d", leftDoor.isOpen(now) ? 1 : 0);
+		else if(command.equals("readR"))
+			return String.format("Pin D3 value is %d", rightDoor.isOpen(now) ? 1 : 0);
+		else if(command.equals("readLR"))
+			return String.format("Pin D2 value is %d\r\nPin D3 value is %d",
+									leftDoor.isOpen(now) ? 1 : 0, rightDoor.isOpen(now) ? 1 : 0);
+		else if(command.equals("toggleL"))
+		{
+			leftDoor.toggle(now);
+			return "Pin D11 value is 0";
+		}
+		else if(command.equals("toggleR"))
+		{
+			rightDoor.toggle(now);
+			return "Pin D12 value is 0";
+		}
+		else
+			return null;
+	}
+
+	private class BridgeHandler implements HttpHandler
+	{
+		@Override
+		public void handle(HttpExchange exchange) throws IOException
+		{
+			requestCount.incrementAndGet();
+
+			int delay;
+			boolean bFail;
+			synchronized(random)
+			{
+				delay = latency + (jitter > 0 ? random.nextInt(jitter + 1) : 0);
+				bFail = failureRate > 0 && random.nextDouble() < failureRate;
+			}
+
+			if(delay > 0)
+			{
+				try
+				{
+					Thread.sleep(delay);
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+			}
+
+			String command = exchange.getRequestURI().getPath().substring("/arduino/".length());
+			String body = bFail ? null : processCommand(command);
+
+			int status;
+			if(bFail)
+			{
+				failedRequestCount.incrementAndGet();
+				status = 503;
+				body = "Simulated failure";
+			}
+			else if(body == null)
+			{
+				status = 404;
+				body = "Unknown command " + command;
+			}
+			else
+				status = 200;
+
+			byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "text/plain");
+			exchange.sendResponseHeaders(status, bytes.length);
+			OutputStream os = exchange.getResponseBody();
+			os.write(bytes);
+			os.close();
+		}
+	}
+
+	/*************************************************************************************
+	 * One garage door. A toggle starts the door travelling towards the opposite position;
+	 * toggling a moving door reverses it, like the real opener.
+	 ************************************************************************************/
+	private static class SimulatedDoor
+	{
+		private long travelTime;
+		private boolean bOpening;	//direction of the last toggle, true if it opened the door
+		private long travelEnd;		//time the door reaches the end of its travel
+
+		SimulatedDoor(long travelTime)
+		{
+			this.travelTime = travelTime;
+			bOpening = false;	//doors start closed
+			travelEnd = 0;
+		}
+
+		synchronized void toggle(long now)
+		{
+			//a moving door reverses from where it is, taking as long to go back as it has travelled
+			long remaining = Math.max(0, travelEnd - now);
+			travelEnd = now + travelTime - remaining;
+			bOpening = !bOpening;
+		}
+
+		/**
+		 * The door sensor only reads closed when the door is all the way down.
+		 */
+		synchronized boolean isOpen(long now)
+		{
+			return bOpening || now < travelEnd;
+		}
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : ServerConfig.getYunSimPort();
+
+		YunSimulator simulator = YunSimulator.getInstance();
+		simulator.start(port);
+		System.out.println("Yun simulator listening at " + simulator.getBaseUrl());
+	}
+}